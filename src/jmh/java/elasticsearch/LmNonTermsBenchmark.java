@@ -0,0 +1,67 @@
+package elasticsearch;
+
+/**
+ *  Language model smoothing of the query terms a document does not contain
+ *  (ESModels.lmNonTerms), after a synthetic query has been accumulated for
+ *  all five models.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LmNonTermsBenchmark {
+
+	@Param({"4", "12"})
+	int queryTerms;
+
+	SyntheticCorpus synthetic;
+	List<RetrievalModel> models;
+	ScoreAccumulator accumulator;
+	TermStats[] termStats;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		synthetic = new SyntheticCorpus(42);
+		models = ESModels.all();
+		accumulator = new ScoreAccumulator(models.size(), SyntheticCorpus.NUM_DOCS);
+
+		int[] docFreqs = synthetic.queryDocFreqs(queryTerms);
+		termStats = new TermStats[queryTerms];
+		for (int t = 0; t < queryTerms; t++) {
+			Postings postings = synthetic.postings("term" + t, docFreqs[t]);
+			termStats[t] = synthetic.termStats(postings, 1);
+			for (int i = 0; i < postings.size(); i++) {
+				accumulator.touch(postings.docId(i), t);
+			}
+		}
+	}
+
+	@Benchmark
+	public ScoreAccumulator lmNonTerms() throws IOException {
+
+		ESModels.lmNonTerms(accumulator, models, termStats, synthetic);
+		return accumulator;
+	}
+}
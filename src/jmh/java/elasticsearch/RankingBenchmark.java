@@ -0,0 +1,62 @@
+package elasticsearch;
+
+/**
+ *  Selection of the top 1000 documents of one model out of the documents
+ *  matched by a query, with the bounded heap used by QueryScorer.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RankingBenchmark {
+
+	@Param({"5000", "40000"})
+	int matchedDocs;
+
+	int[] docIds;
+	double[] scores;
+	TopK topK;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		SyntheticCorpus synthetic = new SyntheticCorpus(42);
+		Postings postings = synthetic.postings("term", matchedDocs);
+		docIds = new int[postings.size()];
+		scores = new double[postings.size()];
+		for (int i = 0; i < docIds.length; i++) {
+			docIds[i] = postings.docId(i);
+			scores[i] = synthetic.random.nextDouble() * 20;
+		}
+		topK = new TopK(1000, synthetic);
+	}
+
+	@Benchmark
+	public Ranking top1000() {
+
+		topK.clear();
+		for (int i = 0; i < docIds.length; i++) {
+			topK.offer(docIds[i], scores[i]);
+		}
+		return topK.drain();
+	}
+}
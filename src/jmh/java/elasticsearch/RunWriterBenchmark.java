@@ -0,0 +1,82 @@
+package elasticsearch;
+
+/**
+ *  Writing the run files of one query: 1000 ranked documents for each of
+ *  the five models. The formatting and buffering is measured directly on
+ *  the RunWriter; the files are recreated for every iteration.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunWriterBenchmark {
+
+	File outputDir;
+	QueryResult result;
+	RunWriter runWriter;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		SyntheticCorpus synthetic = new SyntheticCorpus(42);
+		outputDir = File.createTempFile("runs", "");
+		outputDir.delete();
+		outputDir.mkdirs();
+
+		result = new QueryResult("85");
+		for (RetrievalModel model : ESModels.all()) {
+			Ranking ranking = new Ranking(1000);
+			double score = 25;
+			for (int rank = 0; rank < 1000; rank++) {
+				score -= synthetic.random.nextDouble() * 0.02;
+				ranking.set(rank, synthetic.docno(1 + synthetic.random.nextInt(SyntheticCorpus.NUM_DOCS)), score);
+			}
+			result.put(model.name(), ranking);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void open() {
+		runWriter = new RunWriter(outputDir);
+	}
+
+	@Benchmark
+	public void writeRuns() throws IOException {
+		runWriter.append(result);
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() throws IOException {
+
+		runWriter.close();
+		for (File runFile : outputDir.listFiles()) {
+			runFile.delete();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		outputDir.delete();
+	}
+}
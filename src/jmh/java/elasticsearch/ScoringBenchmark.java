@@ -0,0 +1,97 @@
+package elasticsearch;
+
+/**
+ *  Per-hit model scoring: the static ESModels functions applied one posting
+ *  at a time against the block scoring of each RetrievalModel, over one
+ *  postings list of -p docFreq documents.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoringBenchmark {
+
+	@Param({"1000", "20000"})
+	int docFreq;
+
+	@Param({"okaptf", "tfidf", "okapiBM25", "uniLaplace", "uniJM"})
+	String model;
+
+	RetrievalModel retrievalModel;
+	TermStats termStats;
+	Postings postings;
+	double[] docLengths;
+	double[] scores;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		SyntheticCorpus synthetic = new SyntheticCorpus(42);
+		retrievalModel = ESModels.forNames(model).get(0);
+		postings = synthetic.postings("term", docFreq);
+		termStats = synthetic.termStats(postings, 1);
+		docLengths = new double[postings.size()];
+		for (int i = 0; i < postings.size(); i++) {
+			docLengths[i] = synthetic.docLength(postings.docId(i));
+		}
+		scores = new double[postings.size()];
+	}
+
+	/*
+	 * The model is picked once per postings list, as the per-term scoring
+	 * loop did, and uniJM gets the average document length like it does
+	 * there and in UnigramJelinekMercer
+	 */
+	@Benchmark
+	public double[] perHit() {
+
+		CorpusStatistics corpus = termStats.corpus;
+		int n = postings.size();
+		if (model.equals("okaptf")) {
+			for (int i = 0; i < n; i++)
+				scores[i] = ESModels.okaptf(postings.tf(i), docLengths[i], corpus.avgDocLength);
+		} else if (model.equals("tfidf")) {
+			for (int i = 0; i < n; i++)
+				scores[i] = ESModels.tfIdf(ESModels.okaptf(postings.tf(i), docLengths[i], corpus.avgDocLength),
+						corpus.numOfDocs, termStats.docFreq);
+		} else if (model.equals("okapiBM25")) {
+			for (int i = 0; i < n; i++)
+				scores[i] = ESModels.okapiBM25(postings.tf(i), termStats.tfq, corpus.numOfDocs, termStats.docFreq,
+						docLengths[i], corpus.avgDocLength);
+		} else if (model.equals("uniLaplace")) {
+			for (int i = 0; i < n; i++)
+				scores[i] = ESModels.unigramLMLaplaceSmoothing(postings.tf(i), docLengths[i], corpus.V);
+		} else {
+			for (int i = 0; i < n; i++)
+				scores[i] = ESModels.unigramLMJelinekMercerSmoothing(postings.tf(i), corpus.avgDocLength,
+						termStats.collectionFreq, corpus.docLengthC);
+		}
+		return scores;
+	}
+
+	@Benchmark
+	public double[] block() {
+
+		retrievalModel.scoreBlock(termStats, postings.tfs, docLengths, postings.size(), scores);
+		return scores;
+	}
+}
@@ -0,0 +1,173 @@
+package elasticsearch;
+
+/**
+ *  Query latency against AP89 as the index is spread over more shards and
+ *  nodes. Every trial starts its own local cluster of the given number of
+ *  nodes in a temporary directory, indexes the collection into an index
+ *  with the given number of shards (no replicas) and runs the query set
+ *  once per operation, one query after the other, with QueryTask and with
+ *  ShardedQueryTask.
+ *
+ *  The collection is read from -Dbench.collection (the AP89 files by
+ *  default) and the queries from -Dbench.queries; a built-in query set is
+ *  used when that file is missing. The postings cache is off, so every
+ *  operation goes to the cluster. Needs a JVM Elasticsearch 1.4 runs on.
+ *
+ *  @author Amod Samant
+ */
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ShardScalingBenchmark {
+
+	static final File COLLECTION = new File(System.getProperty("bench.collection", "src/main/resources/ap89_collection"));
+	static final File QUERIES = new File(System.getProperty("bench.queries", "src/main/resources/query_desc.51-100.short.txt"));
+
+	static final String[][] DEFAULT_QUERIES = {
+			{"51", "airbus subsidies "},
+			{"56", "prime lending rate move "},
+			{"64", "hostage-taking "},
+			{"71", "incursion border guerrillas "},
+			{"85", "corruption public officials government "},
+			{"87", "criminal actions officers failed financial institutions "},
+			{"91", "acquisition advanced weapons systems army "},
+			{"100", "controlling transfer high technology "},
+	};
+
+	@Param({"1", "2", "4"})
+	public int nodes;
+
+	@Param({"1", "5", "10"})
+	public int shards;
+
+	File dataDir;
+	ClusterConnection connection;
+	QueryContext context;
+	List<String[]> queries;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		dataDir = Files.createTempDirectory("shard-bench").toFile();
+		connection = ClusterConnection.localNodes("shard-bench-" + nodes + "x" + shards, nodes,
+				ImmutableSettings.settingsBuilder()
+						.put("path.data", dataDir.getPath())
+						.put("http.enabled", false)
+						.build());
+		Client client = connection.client();
+
+		IndexProvisioner.create(client, shards, 0);
+		index(client);
+		client.admin().indices().prepareRefresh(IndexProvisioner.INDEX).execute().actionGet();
+		connection.awaitBalanced(IndexProvisioner.INDEX);
+
+		IndexStatistics statistics = IndexStatistics.build(client);
+		context = new QueryContext(client, statistics.docLengths, statistics.dictionary, statistics.corpus,
+				ESModels.all());
+		if (QUERIES.exists()) {
+			File stoplist = new File("src/main/resources/stoplist.txt");
+			HashSet<String> stopWords = stoplist.exists() ? ESUtils.createHashSetStopAndExtra() : new HashSet<String>();
+			queries = ESQueryProcessor.readQueries(QUERIES, stopWords);
+		} else {
+			queries = Arrays.asList(DEFAULT_QUERIES);
+		}
+	}
+
+	/*
+	 * Bulk indexes every document of the collection under its docno derived id
+	 */
+	private void index(Client client) throws IOException, InterruptedException {
+
+		IndexManifest manifest = new IndexManifest();
+		Analyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+		ESBulkIndexer bulkIndexer = new ESBulkIndexer(client, IndexProvisioner.INDEX, IndexProvisioner.TYPE);
+		File[] files = COLLECTION.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			TrecDocumentReader reader = new TrecDocumentReader(file);
+			TrecDocument document;
+			while ((document = reader.next()) != null) {
+				Map<String,Integer> termFreqs = new HashMap<String,Integer>();
+				XContentBuilder builder = jsonBuilder().startObject()
+						.field("docno", document.getDocno())
+						.field("text", document.getText())
+						.field("doclength", ESUtils.termFreqs(analyzer, document.getText(), termFreqs))
+						.endObject();
+				bulkIndexer.add(String.valueOf(manifest.docId(document.getDocno())), builder);
+			}
+			reader.close();
+		}
+		bulkIndexer.close();
+		analyzer.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+
+		connection.close();
+		delete(dataDir);
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Benchmark
+	public void query(Blackhole blackhole) throws IOException {
+
+		for (String[] query : queries) {
+			blackhole.consume(new QueryTask(context, query[0], query[1]).call());
+		}
+	}
+
+	@Benchmark
+	public void shardedQuery(Blackhole blackhole) throws IOException {
+
+		for (String[] query : queries) {
+			blackhole.consume(new ShardedQueryTask(context, query[0], query[1]).call());
+		}
+	}
+}
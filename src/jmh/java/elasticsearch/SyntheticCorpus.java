@@ -0,0 +1,86 @@
+package elasticsearch;
+
+/**
+ *  Synthetic data sized like AP89 for the benchmarks: 84678 documents with
+ *  log-normally distributed lengths around 440 tokens, a 180000 term
+ *  vocabulary and postings lists drawn with a Zipf-like document frequency.
+ *  
+ *  Generation is seeded, so every fork sees the same data.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.Arrays;
+import java.util.Random;
+
+public class SyntheticCorpus implements DocLengthSource, TopK.DocnoLookup {
+
+	static final int NUM_DOCS = 84678;
+	static final double AVG_DOC_LENGTH = 440;
+	static final double VOCAB_SIZE = 180000;
+
+	final Random random;
+	final double[] docLengths = new double[NUM_DOCS + 1];
+	final String[] docnos = new String[NUM_DOCS + 1];
+	final CorpusStatistics corpus;
+
+	SyntheticCorpus(long seed) {
+
+		random = new Random(seed);
+		double docLengthC = 0;
+		for (int docId = 1; docId <= NUM_DOCS; docId++) {
+			docLengths[docId] = Math.max(10, Math.round(AVG_DOC_LENGTH * Math.exp(0.5 * random.nextGaussian() - 0.125)));
+			docnos[docId] = String.format("AP89%04d-%04d", docId / 300, docId % 300);
+			docLengthC += docLengths[docId];
+		}
+		corpus = new CorpusStatistics(NUM_DOCS, docLengthC / NUM_DOCS, docLengthC, VOCAB_SIZE);
+	}
+
+	public double docLength(int docId) {
+		return docLengths[docId];
+	}
+
+	public String docno(int docId) {
+		return docnos[docId];
+	}
+
+	/*
+	 * Postings of a term matching docFreq random documents, in doc id order
+	 */
+	Postings postings(String term, int docFreq) {
+
+		int[] docIds = new int[docFreq];
+		for (int i = 0; i < docFreq; i++) {
+			docIds[i] = 1 + random.nextInt(NUM_DOCS);
+		}
+		Arrays.sort(docIds);
+
+		Postings postings = new Postings(term, docFreq);
+		for (int docId : docIds) {
+			// Mostly single occurrences with a geometric tail
+			int tf = 1;
+			while (tf < 50 && random.nextDouble() < 0.35) {
+				tf++;
+			}
+			postings.add(docId, docnos[docId], tf);
+		}
+		postings.docFreq = docFreq;
+		return postings;
+	}
+
+	/*
+	 * Document frequencies of a typical short AP89 query: a couple of rare
+	 * terms and a few common ones
+	 */
+	int[] queryDocFreqs(int terms) {
+
+		int[] docFreqs = new int[terms];
+		for (int t = 0; t < terms; t++) {
+			docFreqs[t] = (int) Math.min(NUM_DOCS / 2, 50 * Math.pow(NUM_DOCS / 100.0, random.nextDouble()));
+		}
+		return docFreqs;
+	}
+
+	TermStats termStats(Postings postings, double tfq) {
+		return new TermStats(postings.getTerm(), tfq, postings.getDocFreq(), postings.getCollectionFreq(), corpus);
+	}
+}
@@ -0,0 +1,69 @@
+package elasticsearch;
+
+/**
+ *  Parsing of one AP89-sized TREC file (about 300 documents) held in
+ *  memory, so the benchmark measures TrecDocumentReader rather than disk.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrecParsingBenchmark {
+
+	static final int DOCS_PER_FILE = 300;
+
+	String file;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		Random random = new Random(42);
+		StringBuilder builder = new StringBuilder();
+		for (int doc = 0; doc < DOCS_PER_FILE; doc++) {
+			builder.append("<DOC>\n<DOCNO> AP890101-").append(String.format("%04d", doc)).append(" </DOCNO>\n");
+			builder.append("<FILEID>AP-NR-01-01-89 2358EST</FILEID>\n<HEAD>Synthetic headline</HEAD>\n<TEXT>\n");
+			int lines = 20 + random.nextInt(40);
+			for (int line = 0; line < lines; line++) {
+				for (int word = 0; word < 11; word++) {
+					builder.append("w").append(Integer.toString(random.nextInt(50000), 36)).append(' ');
+				}
+				builder.append('\n');
+			}
+			builder.append("</TEXT>\n</DOC>\n");
+		}
+		file = builder.toString();
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) throws IOException {
+
+		TrecDocumentReader reader = new TrecDocumentReader(new StringReader(file));
+		TrecDocument document;
+		while ((document = reader.next()) != null) {
+			blackhole.consume(document);
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,69 @@
+package elasticsearch;
+
+/**
+ *  Collects the responses of a fixed number of requests dispatched
+ *  asynchronously with execute(ActionListener).
+ *  
+ *  Each request gets the listener of its slot; await() blocks until every
+ *  slot is filled and returns the responses in slot order.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+
+public class AsyncBatch<Response> {
+
+	private final AtomicReferenceArray<Response> responses;
+	private final CountDownLatch pending;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	public AsyncBatch(int size) {
+		this.responses = new AtomicReferenceArray<Response>(size);
+		this.pending = new CountDownLatch(size);
+	}
+
+	public ActionListener<Response> slot(final int slot) {
+
+		return new ActionListener<Response>() {
+			public void onResponse(Response response) {
+				responses.set(slot, response);
+				pending.countDown();
+			}
+
+			public void onFailure(Throwable e) {
+				failure.compareAndSet(null, e);
+				pending.countDown();
+			}
+		};
+	}
+
+	/*
+	 * Waits for every slot and returns the responses in slot order. Rethrows
+	 * the first failure.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Response> await() {
+
+		try {
+			pending.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ElasticsearchException("interrupted while waiting for batched requests", e);
+		}
+		if (failure.get() != null) {
+			throw new ElasticsearchException("batched request failed", failure.get());
+		}
+		Object[] result = new Object[responses.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = responses.get(i);
+		}
+		return (List<Response>) Arrays.asList(result);
+	}
+}
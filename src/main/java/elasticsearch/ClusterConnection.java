@@ -0,0 +1,127 @@
+package elasticsearch;
+
+/**
+ *  ClusterConnection opens the client the indexing and query programs talk
+ *  to:
+ *  	-Des.hosts=host:9300,...	a TransportClient to a running cluster
+ *  								(named by -Des.cluster) that sniffs the
+ *  								other nodes of the cluster
+ *  	-Des.localNodes=N			N embedded nodes started in this JVM, which
+ *  								form a local cluster, to try shard and node
+ *  								counts on one machine
+ *  	otherwise					one embedded node, as before
+ *
+ *  @author Amod Samant
+ */
+import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
+
+import java.util.List;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.node.Node;
+
+public class ClusterConnection {
+
+	static final String HOSTS = System.getProperty("es.hosts", "");
+	static final String CLUSTER = System.getProperty("es.cluster", "elasticsearch");
+	static final int LOCAL_NODES = Integer.getInteger("es.localNodes", 1);
+	static final int DEFAULT_PORT = 9300;
+
+	private final Client client;
+	private final List<Node> nodes;
+
+	private ClusterConnection(Client client, List<Node> nodes) {
+		this.client = client;
+		this.nodes = nodes;
+	}
+
+	/*
+	 * Opens the connection selected by the system properties
+	 */
+	static ClusterConnection open() {
+
+		if (!HOSTS.isEmpty())
+			return transport(CLUSTER, HOSTS);
+		if (LOCAL_NODES > 1)
+			return localNodes(CLUSTER, LOCAL_NODES, ImmutableSettings.EMPTY);
+		Node node = nodeBuilder().node();
+		return new ClusterConnection(node.client(), Lists.newArrayList(node));
+	}
+
+	/*
+	 * Connects to the given comma separated host[:port] addresses. With
+	 * sniffing the client also sends requests to the data nodes it learns
+	 * from the cluster state, not only to the listed ones.
+	 */
+	static ClusterConnection transport(String cluster, String hosts) {
+
+		Settings settings = ImmutableSettings.settingsBuilder()
+				.put("cluster.name", cluster)
+				.put("client.transport.sniff", true)
+				.build();
+		TransportClient client = new TransportClient(settings);
+		for (String host : hosts.split(",")) {
+			host = host.trim();
+			int colon = host.lastIndexOf(':');
+			if (colon < 0)
+				client.addTransportAddress(new InetSocketTransportAddress(host, DEFAULT_PORT));
+			else
+				client.addTransportAddress(new InetSocketTransportAddress(host.substring(0, colon),
+						Integer.parseInt(host.substring(colon + 1))));
+		}
+		System.out.println("connected to " + client.connectedNodes().size() + " nodes of " + cluster);
+		return new ClusterConnection(client, Lists.<Node>newArrayList());
+	}
+
+	/*
+	 * Starts count local nodes of one cluster in this JVM and waits until
+	 * they all joined it. Requests go through the client of the first node.
+	 */
+	static ClusterConnection localNodes(String cluster, int count, Settings settings) {
+
+		List<Node> nodes = Lists.newArrayList();
+		for (int i = 0; i < count; i++) {
+			nodes.add(nodeBuilder()
+					.local(true)
+					.clusterName(cluster)
+					.settings(ImmutableSettings.settingsBuilder().put(settings).put("node.name", cluster + "-" + i))
+					.node());
+		}
+		Client client = nodes.get(0).client();
+		client.admin().cluster().prepareHealth()
+				.setWaitForNodes(String.valueOf(count))
+				.execute()
+				.actionGet();
+		System.out.println("started " + count + " local nodes of " + cluster);
+		return new ClusterConnection(client, nodes);
+	}
+
+	Client client() {
+		return client;
+	}
+
+	/*
+	 * Waits until no shard of the index is initializing or relocating, so
+	 * measurements see the final shard placement
+	 */
+	void awaitBalanced(String index) {
+		client.admin().cluster().prepareHealth(index)
+				.setWaitForYellowStatus()
+				.setWaitForRelocatingShards(0)
+				.execute()
+				.actionGet();
+	}
+
+	void close() {
+
+		client.close();
+		for (Node node : nodes) {
+			node.close();
+		}
+	}
+}
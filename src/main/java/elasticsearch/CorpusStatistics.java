@@ -0,0 +1,221 @@
+package elasticsearch;
+
+/**
+ *  Collection level statistics used by the retrieval models: number of
+ *  documents, average document length, collection length, vocabulary size
+ *  and the collection and document frequency of every indexed term.
+ *
+ *  The statistics are computed once, right after indexing (see
+ *  IndexStatistics), and saved to a versioned snapshot file together with
+ *  the uuid and document count of the index they describe. Query runs load
+ *  the snapshot and only rebuild it if it no longer matches the index. Incremental indexing runs extend a
+ *  snapshot with the statistics of the new documents (see Delta) instead of
+ *  recomputing it.
+ *
+ *  @author Amod Samant
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+
+public class CorpusStatistics {
+
+	static final int MAGIC = 0x43535441; // "CSTA"
+	static final int VERSION = 2;
+
+	final double numOfDocs;
+	final double avgDocLength;
+	final double docLengthC;
+	final double V;
+
+	private final String indexVersion;
+	private final Map<String,Long> collectionFreqs;
+	private final Map<String,Long> docFreqs;
+
+	public CorpusStatistics(double numOfDocs, double avgDocLength, double docLengthC, double V) {
+		this(numOfDocs, avgDocLength, docLengthC, V, "", new HashMap<String,Long>(), new HashMap<String,Long>());
+	}
+
+	CorpusStatistics(double numOfDocs, double avgDocLength, double docLengthC, double V,
+			String indexVersion, Map<String,Long> collectionFreqs, Map<String,Long> docFreqs) {
+		this.numOfDocs = numOfDocs;
+		this.avgDocLength = avgDocLength;
+		this.docLengthC = docLengthC;
+		this.V = V;
+		this.indexVersion = indexVersion;
+		this.collectionFreqs = collectionFreqs;
+		this.docFreqs = docFreqs;
+	}
+
+	/*
+	 * Returns the collection frequency of an indexed (analyzed) term, or -1
+	 * if the term is not part of the snapshot
+	 */
+	public long collectionFreq(String token) {
+		Long collectionFreq = collectionFreqs.get(token);
+		return collectionFreq == null ? -1 : collectionFreq;
+	}
+
+	/*
+	 * Returns the number of documents containing an indexed (analyzed) term
+	 * in the whole index, or -1 if the term is not part of the snapshot
+	 */
+	public long docFreq(String token) {
+		Long docFreq = docFreqs.get(token);
+		return docFreq == null ? -1 : docFreq;
+	}
+
+	/*
+	 * The uuid:count version of the index the statistics were computed for
+	 */
+	public String getIndexVersion() {
+		return indexVersion;
+	}
+
+	public int termCount() {
+		return collectionFreqs.size();
+	}
+
+	/*
+	 * Identifies the current contents of the index by its uuid and document count
+	 */
+	static String indexVersion(Client client) {
+
+		String uuid = indexUuid(client);
+		long count = client.prepareCount("ap_dataset")
+				.setQuery(QueryBuilders.matchAllQuery())
+				.execute()
+				.actionGet()
+				.getCount();
+		return uuid + ":" + count;
+	}
+
+	static String indexUuid(Client client) {
+		return client.admin().indices().prepareGetSettings("ap_dataset")
+				.execute()
+				.actionGet()
+				.getSetting("ap_dataset", "index.uuid");
+	}
+
+	static CorpusStatistics empty() {
+		return new CorpusStatistics(0, 0, 0, 0);
+	}
+
+	/*
+	 * Returns these statistics extended with the documents of the delta,
+	 * for the given index version. V becomes the number of distinct terms.
+	 */
+	CorpusStatistics plus(Delta delta, String indexVersion) {
+
+		synchronized (delta) {
+			Map<String,Long> merged = merge(collectionFreqs, delta.collectionFreqs);
+			double docs = numOfDocs + delta.numOfDocs;
+			double docLength = docLengthC + delta.docLengthC;
+			return new CorpusStatistics(docs, docs == 0 ? 0 : docLength / docs, docLength, merged.size(),
+					indexVersion, merged, merge(docFreqs, delta.docFreqs));
+		}
+	}
+
+	private static Map<String,Long> merge(Map<String,Long> freqs, Map<String,Long> deltaFreqs) {
+
+		Map<String,Long> merged = new HashMap<String,Long>(freqs);
+		for (Map.Entry<String,Long> term : deltaFreqs.entrySet()) {
+			Long freq = merged.get(term.getKey());
+			merged.put(term.getKey(), freq == null ? term.getValue() : freq + term.getValue());
+		}
+		return merged;
+	}
+
+	/*
+	 * Statistics of documents added since a snapshot. Like the snapshot, the
+	 * document length is the number of distinct terms of the document.
+	 */
+	static class Delta {
+
+		long numOfDocs;
+		double docLengthC;
+		final Map<String,Long> collectionFreqs = new HashMap<String,Long>();
+		final Map<String,Long> docFreqs = new HashMap<String,Long>();
+
+		synchronized void add(Map<String,Integer> termFreqs) {
+
+			numOfDocs++;
+			docLengthC += termFreqs.size();
+			for (Map.Entry<String,Integer> term : termFreqs.entrySet()) {
+				Long collectionFreq = collectionFreqs.get(term.getKey());
+				collectionFreqs.put(term.getKey(), collectionFreq == null ? term.getValue() : collectionFreq + term.getValue());
+				Long docFreq = docFreqs.get(term.getKey());
+				docFreqs.put(term.getKey(), docFreq == null ? 1 : docFreq + 1);
+			}
+		}
+	}
+
+	/*
+	 * File layout: magic, version, index version, the four corpus values,
+	 * term count, then (term, collection frequency, document frequency) triples. Written to a
+	 * temporary file that replaces the old one when complete.
+	 */
+	void save(File file) throws IOException {
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(indexVersion);
+			out.writeDouble(numOfDocs);
+			out.writeDouble(avgDocLength);
+			out.writeDouble(docLengthC);
+			out.writeDouble(V);
+			out.writeInt(collectionFreqs.size());
+			for (Map.Entry<String,Long> term : collectionFreqs.entrySet()) {
+				out.writeUTF(term.getKey());
+				out.writeLong(term.getValue());
+				out.writeLong(docFreqs.get(term.getKey()));
+			}
+		} finally {
+			out.close();
+		}
+		ESUtils.moveOver(tmp, file);
+	}
+
+	static CorpusStatistics load(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a corpus statistics snapshot of version " + VERSION);
+			}
+			String indexVersion = in.readUTF();
+			double numOfDocs = in.readDouble();
+			double avgDocLength = in.readDouble();
+			double docLengthC = in.readDouble();
+			double V = in.readDouble();
+			int termCount = in.readInt();
+			Map<String,Long> collectionFreqs = new HashMap<String,Long>(termCount * 2);
+			Map<String,Long> docFreqs = new HashMap<String,Long>(termCount * 2);
+			for (int i = 0; i < termCount; i++) {
+				String term = in.readUTF();
+				collectionFreqs.put(term, in.readLong());
+				docFreqs.put(term, in.readLong());
+			}
+			return new CorpusStatistics(numOfDocs, avgDocLength, docLengthC, V, indexVersion, collectionFreqs, docFreqs);
+		} finally {
+			in.close();
+		}
+	}
+}
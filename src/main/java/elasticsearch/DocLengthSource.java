@@ -0,0 +1,14 @@
+package elasticsearch;
+
+/**
+ *  Provides document lengths by internal document id to the scoring code,
+ *  independent of the backend the postings come from.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+
+public interface DocLengthSource {
+
+	double docLength(int docId) throws IOException;
+}
@@ -0,0 +1,134 @@
+package elasticsearch;
+
+/**
+ *  DocLengthStore keeps the length of every document in the ap_dataset index
+ *  in an int array indexed by document id.
+ *
+ *  The lengths are computed once by the scan/scroll pass of IndexStatistics
+ *  and written to a small binary file, which later runs memory-map and copy
+ *  into the array.
+ *
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+public class DocLengthStore {
+
+	static final int MAGIC = 0x444c454e; // "DLEN"
+	static final int VERSION = 2;
+	static final int HEADER_BYTES = 16;
+
+	private final String indexVersion;
+	private final int[] lengths;
+
+	DocLengthStore(int[] lengths) {
+		this("", lengths);
+	}
+
+	DocLengthStore(String indexVersion, int[] lengths) {
+		this.indexVersion = indexVersion;
+		this.lengths = lengths;
+	}
+
+	/*
+	 * The version of the index the lengths were saved for, like the one of
+	 * CorpusStatistics
+	 */
+	public String getIndexVersion() {
+		return indexVersion;
+	}
+
+	/*
+	 * Returns the length of the given document id, or 0 if the id is unknown
+	 */
+	public int get(int docId) {
+		return docId >= 0 && docId < lengths.length ? lengths[docId] : 0;
+	}
+
+	public int get(String docId) {
+		return get(Integer.parseInt(docId));
+	}
+
+	public int maxDocId() {
+		return lengths.length - 1;
+	}
+
+	/*
+	 * Returns a copy of the store with the given lengths set, grown to the
+	 * largest new doc id if needed, for the given index version
+	 */
+	DocLengthStore extend(Map<Integer,Integer> newLengths, String indexVersion) {
+
+		int maxDocId = maxDocId();
+		for (int docId : newLengths.keySet()) {
+			maxDocId = Math.max(maxDocId, docId);
+		}
+		int[] extended = Arrays.copyOf(lengths, maxDocId + 1);
+		for (Map.Entry<Integer,Integer> length : newLengths.entrySet()) {
+			extended[length.getKey()] = length.getValue();
+		}
+		return new DocLengthStore(indexVersion, extended);
+	}
+
+	/*
+	 * File layout: magic, version, length of the UTF-8 index version, count,
+	 * the index version padded to 4 bytes, then count little-endian ints.
+	 * Written to a temporary file that replaces the old one when complete.
+	 */
+	void save(File file) throws IOException {
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+
+		byte[] version = indexVersion.getBytes("UTF-8");
+		int paddedVersion = (version.length + 3) & ~3;
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + paddedVersion + 4 * lengths.length)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(version.length).putInt(lengths.length);
+			buffer.put(version).position(HEADER_BYTES + paddedVersion);
+			buffer.asIntBuffer().put(lengths);
+			buffer.rewind();
+			FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			raf.close();
+		}
+		ESUtils.moveOver(tmp, file);
+	}
+
+	static DocLengthStore load(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException(file + " is not a doc length store of version " + VERSION);
+			}
+			byte[] version = new byte[buffer.getInt()];
+			int[] lengths = new int[buffer.getInt()];
+			buffer.get(version);
+			buffer.position(HEADER_BYTES + ((version.length + 3) & ~3));
+			buffer.asIntBuffer().get(lengths);
+			return new DocLengthStore(new String(version, "UTF-8"), lengths);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package elasticsearch;
+
+/**
+ *  DocnoDictionary maps the internal document ids of ap_dataset to their
+ *  docno and back.
+ *
+ *  Like DocLengthStore it is built once by the scan/scroll pass of
+ *  IndexStatistics and saved next to it, so the scoring code can key everything by int doc id and only
+ *  turn ids into docnos when writing ranked lists.
+ *
+ *  @author Amod Samant
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class DocnoDictionary {
+
+	static final int MAGIC = 0x444e4f53; // "DNOS"
+	static final int VERSION = 2;
+
+	private final String indexVersion;
+	private final String[] docnos;
+	private final HashMap<String,Integer> docIds;
+
+	DocnoDictionary(String[] docnos) {
+		this("", docnos);
+	}
+
+	DocnoDictionary(String indexVersion, String[] docnos) {
+
+		this.indexVersion = indexVersion;
+		this.docnos = docnos;
+		this.docIds = new HashMap<String,Integer>(docnos.length * 2);
+		for (int docId = 0; docId < docnos.length; docId++) {
+			if (docnos[docId] != null) {
+				docIds.put(docnos[docId], docId);
+			}
+		}
+	}
+
+	/*
+	 * Returns the docno of the given id, or null if the id is unknown
+	 */
+	public String docno(int docId) {
+		return docId >= 0 && docId < docnos.length ? docnos[docId] : null;
+	}
+
+	/*
+	 * Returns the id of the given docno, or -1 if the docno is unknown
+	 */
+	public int docId(String docno) {
+		Integer docId = docIds.get(docno);
+		return docId == null ? -1 : docId;
+	}
+
+	public int maxDocId() {
+		return docnos.length - 1;
+	}
+
+	/*
+	 * The version of the index the docnos were saved for
+	 */
+	public String getIndexVersion() {
+		return indexVersion;
+	}
+
+	/*
+	 * Returns a copy of the dictionary with the given docnos added, grown to
+	 * the largest new doc id if needed, for the given index version
+	 */
+	DocnoDictionary extend(Map<Integer,String> newDocnos, String indexVersion) {
+
+		int maxDocId = maxDocId();
+		for (int docId : newDocnos.keySet()) {
+			maxDocId = Math.max(maxDocId, docId);
+		}
+		String[] extended = Arrays.copyOf(docnos, maxDocId + 1);
+		for (Map.Entry<Integer,String> docno : newDocnos.entrySet()) {
+			extended[docno.getKey()] = docno.getValue();
+		}
+		return new DocnoDictionary(indexVersion, extended);
+	}
+
+	/*
+	 * File layout: magic, version, index version, count, then one UTF string
+	 * per id (empty for unused ids). Written to a temporary file that
+	 * replaces the old one when complete.
+	 */
+	void save(File file) throws IOException {
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(indexVersion);
+			out.writeInt(docnos.length);
+			for (String docno : docnos) {
+				out.writeUTF(docno == null ? "" : docno);
+			}
+		} finally {
+			out.close();
+		}
+		ESUtils.moveOver(tmp, file);
+	}
+
+	static DocnoDictionary load(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a docno dictionary of version " + VERSION);
+			}
+			String indexVersion = in.readUTF();
+			String[] docnos = new String[in.readInt()];
+			for (int docId = 0; docId < docnos.length; docId++) {
+				String docno = in.readUTF();
+				docnos[docId] = docno.isEmpty() ? null : docno;
+			}
+			return new DocnoDictionary(indexVersion, docnos);
+		} finally {
+			in.close();
+		}
+	}
+}
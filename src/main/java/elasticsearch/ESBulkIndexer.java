@@ -0,0 +1,264 @@
+package elasticsearch;
+
+/**
+ *  ESBulkIndexer batches index requests through a BulkProcessor instead of
+ *  waiting on a round trip per document.
+ *
+ *  Batch size (documents and bytes), concurrent bulk requests, flush interval
+ *  and the retry/backoff policy for rejected items are read from system
+ *  properties (see the constants below). Per batch latency and throughput are
+ *  printed as each bulk request completes. Items rejected by a full bulk
+ *  queue, and whole batches that failed on a rejection or a lost connection,
+ *  are retried; any other failure (e.g. a mapping or parse error) is final.
+ *
+ *  @author Amod Samant
+ */
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+
+public class ESBulkIndexer {
+
+	static final int BULK_ACTIONS = Integer.getInteger("bulk.actions", 1000);
+	static final long BULK_SIZE_MB = Long.getLong("bulk.sizeMb", 5);
+	static final int CONCURRENT_REQUESTS = Integer.getInteger("bulk.concurrentRequests", 2);
+	static final long FLUSH_INTERVAL_MS = Long.getLong("bulk.flushIntervalMs", 5000);
+	static final int MAX_RETRIES = Integer.getInteger("bulk.maxRetries", 5);
+	static final long BACKOFF_MS = Long.getLong("bulk.backoffMs", 200);
+
+	private final String index;
+	private final String type;
+	private final AckListener ackListener;
+	private final BulkProcessor bulkProcessor;
+	private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+
+	// Every queued document is counted in one of these until it is acknowledged
+	private final AtomicInteger bufferedDocs = new AtomicInteger();
+	private final AtomicInteger pendingRetries = new AtomicInteger();
+	private final AtomicInteger inFlightBatches = new AtomicInteger();
+	private volatile boolean closed;
+	private final AtomicLong indexedDocs = new AtomicLong();
+	private final AtomicLong failedDocs = new AtomicLong();
+	private final long startTime = System.nanoTime();
+
+	/*
+	 * Told about the outcome of every document, from the bulk response
+	 * threads. A document is failed once it is out of retries.
+	 */
+	public interface AckListener {
+		void indexed(String id);
+		void failed(String id);
+	}
+
+	public ESBulkIndexer(Client client, String index, String type) {
+		this(client, index, type, null);
+	}
+
+	public ESBulkIndexer(Client client, String index, String type, AckListener ackListener) {
+
+		this.index = index;
+		this.type = type;
+		this.ackListener = ackListener;
+		this.bulkProcessor = BulkProcessor.builder(client, new BatchListener())
+				.setName("ap-bulk")
+				.setBulkActions(BULK_ACTIONS)
+				.setBulkSize(new ByteSizeValue(BULK_SIZE_MB, ByteSizeUnit.MB))
+				.setConcurrentRequests(CONCURRENT_REQUESTS)
+				.setFlushInterval(TimeValue.timeValueMillis(FLUSH_INTERVAL_MS))
+				.build();
+	}
+
+	/*
+	 * Queues a document for indexing. Blocks only when all concurrent bulk
+	 * slots are in flight.
+	 */
+	public void add(String id, XContentBuilder source) {
+		bufferedDocs.incrementAndGet();
+		bulkProcessor.add(new IndexRequest(index, type, id).source(source), 0);
+	}
+
+	/*
+	 * Flushes outstanding documents, waits for retries and in flight batches
+	 * and prints the overall throughput.
+	 */
+	public void close() throws InterruptedException {
+
+		// A batch still in flight may schedule retries, and a retry goes back
+		// into the buffer, so drain all three before closing
+		bulkProcessor.flush();
+		while (bufferedDocs.get() > 0 || inFlightBatches.get() > 0 || pendingRetries.get() > 0) {
+			Thread.sleep(BACKOFF_MS);
+			bulkProcessor.flush();
+		}
+		closed = true;
+		bulkProcessor.awaitClose(10, TimeUnit.MINUTES);
+		retryScheduler.shutdown();
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.println(String.format("indexed %d docs (%d failed) in %.1fs, %.0f docs/s",
+				indexedDocs.get(), failedDocs.get(), seconds, indexedDocs.get() / seconds));
+	}
+
+	/*
+	 * Re-queues a rejected request after an exponential backoff. Runs on the
+	 * retry scheduler so the bulk response thread never blocks on a bulk slot.
+	 * A request that can no longer be queued because the indexer is closed
+	 * is failed.
+	 */
+	private void retry(final ActionRequest<?> request, final int attempt) {
+
+		if (closed) {
+			failed(request, "indexer closed before retry");
+			return;
+		}
+		pendingRetries.incrementAndGet();
+		long delay = BACKOFF_MS << Math.min(attempt - 1, 10);
+		try {
+			retryScheduler.schedule(new Runnable() {
+				public void run() {
+					try {
+						bufferedDocs.incrementAndGet();
+						bulkProcessor.add(request, attempt);
+					} catch (IllegalStateException e) {
+						bufferedDocs.decrementAndGet();
+						failed(request, "indexer closed before retry");
+					} finally {
+						pendingRetries.decrementAndGet();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pendingRetries.decrementAndGet();
+			failed(request, "indexer closed before retry");
+		}
+	}
+
+	private void failed(ActionRequest<?> request, String message) {
+
+		String id = ((IndexRequest) request).id();
+		failedDocs.incrementAndGet();
+		System.err.println("failed to index " + id + ": " + message);
+		if (ackListener != null)
+			ackListener.failed(id);
+	}
+
+	private static int attempt(List<Object> payloads, int item) {
+		return payloads == null || payloads.get(item) == null ? 0 : (Integer) payloads.get(item);
+	}
+
+	/*
+	 * Whether a failed batch is worth sending again: rejected by a full
+	 * queue, or lost on the way to or from the node
+	 */
+	static boolean isTransient(Throwable failure) {
+
+		Throwable cause = ExceptionsHelper.unwrapCause(failure);
+		if (cause instanceof ConnectTransportException || cause instanceof NoNodeAvailableException)
+			return true;
+		if (cause instanceof ElasticsearchException) {
+			RestStatus status = ((ElasticsearchException) cause).status();
+			return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+		}
+		return false;
+	}
+
+	private class BatchListener implements BulkProcessor.Listener {
+
+		private final Map<Long,Long> batchStart = new ConcurrentHashMap<Long,Long>();
+
+		public void beforeBulk(long executionId, BulkRequest request) {
+			inFlightBatches.incrementAndGet();
+			bufferedDocs.addAndGet(-request.numberOfActions());
+			batchStart.put(executionId, System.nanoTime());
+		}
+
+		public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+
+			long batchStartNanos = batchStart.remove(executionId);
+			long tookNanos = System.nanoTime() - batchStartNanos;
+			Metrics.record("index.request", batchStartNanos);
+			Metrics.roundTrip("bulk");
+			// BulkRequest hands out a raw list
+			@SuppressWarnings("rawtypes")
+			List<ActionRequest> requests = request.requests();
+			List<Object> payloads = request.payloads();
+			int succeeded = 0;
+			int retried = 0;
+
+			for (BulkItemResponse item : response.getItems()) {
+				if (!item.isFailed()) {
+					succeeded++;
+					if (ackListener != null)
+						ackListener.indexed(item.getId());
+					continue;
+				}
+				int attempt = attempt(payloads, item.getItemId());
+				if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS && attempt < MAX_RETRIES) {
+					retry(requests.get(item.getItemId()), attempt + 1);
+					retried++;
+				} else {
+					failedDocs.incrementAndGet();
+					System.err.println("failed to index " + item.getId() + ": " + item.getFailureMessage());
+					if (ackListener != null)
+						ackListener.failed(item.getId());
+				}
+			}
+			indexedDocs.addAndGet(succeeded);
+
+			double millis = tookNanos / 1e6;
+			System.out.println(String.format("bulk %d: %d docs, %d bytes, %.1fms, %.0f docs/s, %d retried",
+					executionId, succeeded, request.estimatedSizeInBytes(), millis,
+					succeeded / (millis / 1000), retried));
+			inFlightBatches.decrementAndGet();
+		}
+
+		public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+
+			batchStart.remove(executionId);
+			Metrics.roundTrip("bulk");
+			Metrics.increment("index.failedBatches", 1);
+			@SuppressWarnings("rawtypes")
+			List<ActionRequest> requests = request.requests();
+			List<Object> payloads = request.payloads();
+			boolean retryable = isTransient(failure);
+			System.err.println("bulk " + executionId + " failed" + (retryable ? ", retrying: " : ": ")
+					+ failure.getMessage());
+
+			// Whole batch rejected or lost, retry every item with backoff
+			for (int i = 0; i < requests.size(); i++) {
+				int attempt = attempt(payloads, i);
+				if (retryable && attempt < MAX_RETRIES) {
+					retry(requests.get(i), attempt + 1);
+				} else {
+					failedDocs.incrementAndGet();
+					if (ackListener != null)
+						ackListener.failed(((IndexRequest) requests.get(i)).id());
+				}
+			}
+			inFlightBatches.decrementAndGet();
+		}
+	}
+}
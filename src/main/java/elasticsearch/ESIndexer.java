@@ -3,8 +3,32 @@ package elasticsearch;
 /**
  *  ESIndexer indexes the documents present in src/main/resources/ap89_collection.
  *  
- *  /ap_dataset is created(done manually) in ElasticSearch and docno and text for each document
- *  are indexed.
+ *  /ap_dataset is created by IndexProvisioner with an explicit mapping and docno, text and
+ *  doclength (number of standard analyzer tokens of the text) for each document are indexed.
+ *  Refreshes and replicas are off during the load; the index is optimized afterwards.
+ *  
+ *  Files are parsed in parallel by TrecCollectionParser (-Dindexer.parserThreads) and
+ *  handed over through a bounded queue (-Dindexer.queueCapacity). Document ids are
+ *  derived from the docno (see IndexManifest), so reindexing a document overwrites it.
+ *  
+ *  Indexing is incremental: IndexManifest (stats/manifest.json) checkpoints every
+ *  file, so complete files are skipped and a crashed run resumes after the last
+ *  acknowledged document of each file. New or resumed documents are added to the
+ *  existing statistics snapshots by IndexingProgress instead of recomputing them.
+ *  An index that already holds documents but has no matching manifest is not
+ *  indexed into; rerun with -Dindexer.recreate=true to rebuild it.
+ *  
+ *  Documents are sent in batches through ESBulkIndexer. Run with -Dindexer.bulk=false
+ *  to fall back to one blocking index request per document.
+ *  
+ *  Per phase timings (parse, build JSON, index request, flush) are written
+ *  by Metrics at the end.
+ *  
+ *  After indexing, corpus statistics, document lengths and docnos are written
+ *  to stats/ for ESQueryProcessor (also at every -Dindexer.checkpointDocs checkpoint).
+ *  
+ *  The cluster is reached through ClusterConnection, so -Des.hosts indexes into a
+ *  running cluster; -Dindexer.shards sets the number of shards of a new index.
  *  
  *  Dependencies are resolved with Maven
  *  
@@ -12,74 +36,122 @@ package elasticsearch;
  */
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.node.Node;
 
 public class ESIndexer {
 	
-	public static int id = 0;
-
-	public static void main(String[] args) throws IOException {
+	static final boolean BULK = Boolean.parseBoolean(System.getProperty("indexer.bulk", "true"));
+	static final int PARSER_THREADS = Integer.getInteger("indexer.parserThreads", Runtime.getRuntime().availableProcessors());
+	static final int QUEUE_CAPACITY = Integer.getInteger("indexer.queueCapacity", 1000);
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
 		
-		Node node = nodeBuilder().node();
-		Client client = node.client();
+		ClusterConnection connection = ClusterConnection.open();
+		Client client = connection.client();
+		IndexProvisioner.create(client);
+		IndexingProgress progress = IndexingProgress.open(client);
 		
-		String docNo = "";
-		String textSectionString;
 		File resourceLocation = new File("src/main/resources/ap89_collection");
 		File[] files = resourceLocation.listFiles();
+		Arrays.sort(files);
 		
-		for (File fileToIndex : files) {
-			BufferedReader bufferedReader = new BufferedReader(new FileReader(fileToIndex));
-			String line; 
-			textSectionString = "";
-			while((line = bufferedReader.readLine())!=null) {
-				
-				if(line.contains("<DOCNO>") && line.contains("</DOCNO>")) {
-					docNo = line.replaceAll("<DOCNO>\\s+(.+?)\\s+</DOCNO>", "$1");
-					id++;
-				}
-				
-				if(line.contains("<TEXT>")) {
-					StringBuilder textSection = new StringBuilder();
-					
-					while (!((line = bufferedReader.readLine()).contains("</TEXT>"))) {
-						textSection.append(line).append(" ");
-					}  
-					textSectionString = textSectionString + textSection.toString();
-				}
-				
-				if(line.equals("</DOC>")) {
-					
-					XContentBuilder builder = 
-							jsonBuilder().startObject()
-							.field("docno",docNo)
-							.field("text",textSectionString)
-							.endObject();
-							
-					 
+		// Complete files are skipped, partially indexed ones resume after their checkpoint
+		final Map<String,Integer> resumeFrom = Maps.newHashMap();
+		List<File> pendingFiles = Lists.newArrayList();
+		for(File file : files) {
+			int position = progress.resumeFrom(file);
+			if(position < 0)
+				continue;
+			resumeFrom.put(file.getName(), position);
+			pendingFiles.add(file);
+		}
+		System.out.println(pendingFiles.size() + " of " + files.length + " files to index");
+		if(pendingFiles.isEmpty()) {
+			connection.close();
+			return;
+		}
+		
+		Settings loadSettings = IndexProvisioner.beginBulkLoad(client);
+		TrecCollectionParser parser = new TrecCollectionParser(pendingFiles.toArray(new File[pendingFiles.size()]),
+				PARSER_THREADS, QUEUE_CAPACITY, progress);
+		long flushStart;
+		try {
+			ESBulkIndexer bulkIndexer = BULK ? new ESBulkIndexer(client, "ap_dataset", "document", progress) : null;
+			parser.start();
+		
+			// Same tokenization as the text_standard analyzer of the text field
+			Analyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+		
+			TrecDocument document;
+			while((document = parser.take())!=null) {
+				if(document.getPosition() < resumeFrom.get(document.getSource().getName()))
+					continue;
+				int id = progress.manifest.docId(document.getDocno());
+			
+				long start = System.nanoTime();
+				Map<String,Integer> termFreqs = Maps.newHashMap();
+				int docLength = ESUtils.termFreqs(analyzer, document.getText(), termFreqs);
+				XContentBuilder builder = 
+						jsonBuilder().startObject()
+						.field("docno",document.getDocno())
+						.field("text",document.getText())
+						.field("doclength",docLength)
+						.endObject();
+				Metrics.record("index.buildJson", start);
+				progress.sent(id, document, termFreqs, docLength);
+			
+				start = System.nanoTime();
+				if(BULK) {
+					bulkIndexer.add(String.valueOf(id), builder);
+					Metrics.record("index.enqueue", start);
+				} else {
 					client.prepareIndex("ap_dataset", "document",String.valueOf(id))
 					.setSource(builder)
 					.execute()
 					.actionGet();
-					
-					textSectionString = "";
+					Metrics.record("index.request", start);
+					progress.indexed(String.valueOf(id));
 					System.out.println(id);
-					builder.close();	
 				}
+				Metrics.increment("index.docs", 1);
+				builder.close();
+				progress.maybeCheckpoint();
 			}
-		bufferedReader.close();	
+			flushStart = System.nanoTime();
+			if(BULK)
+				bulkIndexer.close();
+			analyzer.close();
+		} finally {
+			// Also after a failure: parser threads must not stay blocked on
+			// the queue, and the index never keeps the load settings
+			parser.stop();
+			IndexProvisioner.restoreSettings(client, loadSettings);
 		}
-		client.close();
-		node.close();
+		
+		// Refreshes and optimizes
+		IndexProvisioner.endBulkLoad(client);
+		Metrics.record("index.flush", flushStart);
+		
+		// Extend (or rebuild) the statistics the query side needs while the index is unchanged
+		long start = System.nanoTime();
+		progress.finish(client);
+		Metrics.record("index.stats", start);
+		Metrics.writeSummary("indexing");
+		connection.close();
 		
 	}
 
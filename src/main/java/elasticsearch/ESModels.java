@@ -1,14 +1,15 @@
 package elasticsearch;
 
 /**
- *  Contains all the model functions
+ *  Contains all the model functions, and the RetrievalModel implementations
+ *  that apply them to whole postings blocks.
  *  
  *  @author Amod Samant
  */
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
-import java.util.Map;
+
+import org.elasticsearch.common.collect.Lists;
 
 public class ESModels {
 
@@ -74,56 +75,232 @@ public class ESModels {
 	
 	/*
 	 *  Function to add score for terms not existing in documents.
-	 *  Only for Language models.
+	 *  Only for models that score missing terms (Language models).
+	 *  
+	 *  The term part of the missing-term score is computed once per query.
+	 *  Each document is then visited once: its missing terms are the clear
+	 *  bits of its matched-terms mask, and the document part is added once
+	 *  per missing term. Both parts are scaled by the query weight of the
+	 *  term, which is 1 for the terms of the query as written.
 	 */
-	static List<HashMap<String,Double>> lmNonTerms(HashMap<String,List<String>> lMHelper, 
-			HashMap<String,Double> uniLaplaceScoreQueryPerDoc,
-			HashMap<String,Double> uniJMScoreQueryPerDoc,
-			HashMap<String,Double> termFreqQueryMap,
-			HashMap<String,Double> termFreqCorpus,
-			HashMap<String,Double> docLengthMap,
-			double docLengthC,
-			double V) {
+	static void lmNonTerms(ScoreAccumulator accumulator,
+			List<RetrievalModel> models,
+			TermStats[] queryTerms,
+			DocLengthSource docLengths) throws IOException {
 		
-		List<HashMap<String,Double>> lmMaps = new ArrayList<HashMap<String,Double>>(); 
+		int[] lmModels = new int[models.size()];
+		int numLmModels = 0;
+		for(int model = 0; model < models.size(); model++) {
+			if(models.get(model).scoresMissingTerms())
+				lmModels[numLmModels++] = model;
+		}
+		if(numLmModels == 0 || queryTerms.length == 0)
+			return;
 		
-		HashMap<String,Double> uniJM = uniJMScoreQueryPerDoc;
-		HashMap<String,Double> uniLaplace = uniLaplaceScoreQueryPerDoc;
+		double[] queryWeights = new double[queryTerms.length];
+		for(int term = 0; term < queryTerms.length; term++) {
+			queryWeights[term] = queryTerms[term].queryWeight;
+		}
+		double[][] termWeights = new double[numLmModels][queryTerms.length];
+		for(int lm = 0; lm < numLmModels; lm++) {
+			RetrievalModel retrievalModel = models.get(lmModels[lm]);
+			for(int term = 0; term < queryTerms.length; term++) {
+				termWeights[lm][term] = retrievalModel.missingTermWeight(queryTerms[term])*queryWeights[term];
+			}
+		}
+		CorpusStatistics corpus = queryTerms[0].corpus;
+		long allTerms = queryTerms.length == 64 ? -1L : (1L << queryTerms.length) - 1;
 		
-		for(Map.Entry<String, List<String>> doc : lMHelper.entrySet()) {
+		for(int i = 0; i < accumulator.size(); i++) {
 			
-			List<String> lmDocTerms = doc.getValue();
-			String docno = doc.getKey();
-	
-			double finalLapScore = 0.0;
-			double finalJMScore = 0.0;
-			
-			double jmScore = uniJM.get(docno);
-			double laplaceScore = uniLaplace.get(docno);
+			int docId = accumulator.docAt(i);
+			long missing = ~accumulator.matchedTerms(docId) & allTerms;
+			if(missing == 0)
+				continue;
+			// Sum of the query weights of the missing terms, their count without feedback
+			double missingWeight = 0;
+			for(long bits = missing; bits != 0; bits &= bits - 1) {
+				missingWeight += queryWeights[Long.numberOfTrailingZeros(bits)];
+			}
+			double docLength = docLengths.docLength(docId);
 			
-			// Calculating Laplace and JM scores
-			for(Map.Entry<String,Double> term : termFreqQueryMap.entrySet()) {
-				
-				if(!lmDocTerms.contains(term.getKey())) {
-					
-					double tfdC = termFreqCorpus.get(term.getKey());
-					finalLapScore = finalLapScore + Math.log((double)(1/(docLengthMap.get(docno)+V)));
-					finalJMScore = finalJMScore + Math.log(((1-lambda)*tfdC/docLengthC));	
+			for(int lm = 0; lm < numLmModels; lm++) {
+				double[] weights = termWeights[lm];
+				double finalScore = missingWeight * models.get(lmModels[lm]).missingTermDocWeight(corpus, docLength);
+				for(long bits = missing; bits != 0; bits &= bits - 1) {
+					finalScore += weights[Long.numberOfTrailingZeros(bits)];
 				}
+				accumulator.add(lmModels[lm], docId, finalScore);
+			}
+		}
+	}
+	
+	/*
+	 * Returns the models named in the comma separated list, in that order.
+	 * "all" selects every model.
+	 */
+	static List<RetrievalModel> forNames(String names) {
+		
+		List<RetrievalModel> models = Lists.newArrayList();
+		for(String name : names.split(",")) {
+			name = name.trim();
+			if(name.equalsIgnoreCase("all")) {
+				models.addAll(all());
+				continue;
+			}
+			RetrievalModel model = null;
+			for(RetrievalModel candidate : all()) {
+				if(candidate.name().equalsIgnoreCase(name))
+					model = candidate;
+			}
+			if(model == null)
+				throw new IllegalArgumentException("Unknown retrieval model " + name);
+			models.add(model);
+		}
+		return models;
+	}
+	
+	static List<RetrievalModel> all() {
+		
+		List<RetrievalModel> models = Lists.newArrayList();
+		models.add(new OkapiTf());
+		models.add(new TfIdf());
+		models.add(new OkapiBM25());
+		models.add(new UnigramLaplace());
+		models.add(new UnigramJelinekMercer());
+		return models;
+	}
+	
+	/*
+	 * Base class for the models that ignore terms missing from a document
+	 */
+	static abstract class VectorSpaceModel implements RetrievalModel {
+		
+		public boolean scoresMissingTerms() {
+			return false;
+		}
+		
+		public double missingTermWeight(TermStats term) {
+			return 0.0;
+		}
+		
+		public double missingTermDocWeight(CorpusStatistics corpus, double docLength) {
+			return 0.0;
+		}
+	}
+	
+	static class OkapiTf extends VectorSpaceModel {
+		
+		public String name() {
+			return "okaptf";
+		}
+		
+		public void scoreBlock(TermStats term, int[] tfs, double[] docLengths, int n, double[] scores) {
+			
+			double invAvgDocLength = 1.0/term.corpus.avgDocLength;
+			double queryWeight = term.queryWeight;
+			for(int i = 0; i < n; i++) {
+				double tf = tfs[i];
+				scores[i] = tf/(tf+0.5+1.5*(docLengths[i]*invAvgDocLength))*queryWeight;
 			}
+		}
+	}
+	
+	static class TfIdf extends VectorSpaceModel {
+		
+		public String name() {
+			return "tfidf";
+		}
+		
+		public void scoreBlock(TermStats term, int[] tfs, double[] docLengths, int n, double[] scores) {
 			
-			finalLapScore = finalLapScore + laplaceScore;
-			uniLaplace.put(docno, finalLapScore);
+			double idf = Math.log(term.corpus.numOfDocs/term.docFreq)*term.queryWeight;
+			double invAvgDocLength = 1.0/term.corpus.avgDocLength;
+			for(int i = 0; i < n; i++) {
+				double tf = tfs[i];
+				scores[i] = idf*tf/(tf+0.5+1.5*(docLengths[i]*invAvgDocLength));
+			}
+		}
+	}
+	
+	static class OkapiBM25 extends VectorSpaceModel {
+		
+		public String name() {
+			return "okapiBM25";
+		}
+		
+		public void scoreBlock(TermStats term, int[] tfs, double[] docLengths, int n, double[] scores) {
 			
-			finalJMScore = finalJMScore + jmScore;
-			uniJM.put(docno, finalJMScore);
+			double idf = Math.log((term.corpus.numOfDocs+0.5)/(term.docFreq+0.5));
+			double queryWeight = (term.tfq+k2*term.tfq)/(term.tfq+k2);
+			double norm0 = k1*(1-b);
+			double norm1 = k1*b/term.corpus.avgDocLength;
+			for(int i = 0; i < n; i++) {
+				double tfd = tfs[i];
+				scores[i] = idf*((tfd+k1*tfd)/(tfd+norm0+norm1*docLengths[i]))*queryWeight;
+			}
+		}
+	}
+	
+	static class UnigramLaplace implements RetrievalModel {
+		
+		public String name() {
+			return "uniLaplace";
+		}
+		
+		public void scoreBlock(TermStats term, int[] tfs, double[] docLengths, int n, double[] scores) {
 			
+			double V = term.corpus.V;
+			double queryWeight = term.queryWeight;
+			for(int i = 0; i < n; i++) {
+				scores[i] = Math.log((tfs[i]+1)/(docLengths[i]+V))*queryWeight;
+			}
+		}
+		
+		public boolean scoresMissingTerms() {
+			return true;
+		}
+		
+		// log(1/(docLength+V)) only depends on the document
+		public double missingTermWeight(TermStats term) {
+			return 0.0;
 		}
 		
-		lmMaps.add(uniLaplace);
-		lmMaps.add(uniJM);
-		return lmMaps;
+		public double missingTermDocWeight(CorpusStatistics corpus, double docLength) {
+			return -Math.log(docLength+corpus.V);
+		}
 	}
 	
+	static class UnigramJelinekMercer implements RetrievalModel {
+		
+		public String name() {
+			return "uniJM";
+		}
+		
+		public void scoreBlock(TermStats term, int[] tfs, double[] docLengths, int n, double[] scores) {
+			
+			// Like unigramLMJelinekMercerSmoothing as called so far, the document
+			// part is normalised by the average document length
+			double docWeight = lambda/term.corpus.avgDocLength;
+			double background = (1-lambda)*term.collectionFreq/term.corpus.docLengthC;
+			double queryWeight = term.queryWeight;
+			for(int i = 0; i < n; i++) {
+				scores[i] = Math.log(docWeight*tfs[i]+background)*queryWeight;
+			}
+		}
+		
+		public boolean scoresMissingTerms() {
+			return true;
+		}
+		
+		// The background probability only depends on the term
+		public double missingTermWeight(TermStats term) {
+			return Math.log((1-lambda)*term.collectionFreq/term.corpus.docLengthC);
+		}
+		
+		public double missingTermDocWeight(CorpusStatistics corpus, double docLength) {
+			return 0.0;
+		}
+	}
 	
 }
@@ -4,330 +4,174 @@ package elasticsearch;
  * 	ESQueryExecution reads the query file and executes the queries on
  *  the /ap_dataset index.
  *  
- *  This file requires ESIndexer to be run only once before.
+ *  This file requires ESIndexer to be run only once before. Document lengths,
+ *  docnos and corpus statistics are read from stats/doclengths.bin,
+ *  stats/docnos.bin and stats/corpus.bin, which ESIndexer writes after
+ *  indexing. When a file is missing or the corpus snapshot does not match
+ *  the index, all three are rebuilt in one pass by IndexStatistics.
+ *  
+ *  Each query is scored by a QueryTask on a pool of -Dquery.threads workers.
+ *  Results are written to the run files by RunWriter in query file order. -Dquery.models
+ *  selects the models to run (e.g. okapiBM25,uniJM), all five by default.
+ *  -Dquery.serverSide=true scores inside Elasticsearch with ServerSideQueryTask,
+ *  -Dquery.sharded=true fetches and scores shard by shard with ShardedQueryTask.
+ *  -Dquery.prf=true expands every query with pseudo relevance feedback
+ *  (FeedbackQueryTask) before the final run.
+ *  The cluster is reached through ClusterConnection (-Des.hosts, -Des.localNodes).
+ *  Postings are cached on disk by PostingsCache (-Dquery.cache=false to skip it),
+ *  so reruns against the same index do not fetch them again.
+ *  Per phase timings and round trip counts are written by Metrics at the end.
  *  
  *  @author Amod Samant
  */
-import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
-import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
-
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.elasticsearch.action.count.CountResponse;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.Lists;
-import org.elasticsearch.common.collect.Maps;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.node.Node;
-import org.elasticsearch.search.SearchHit;
 
 public class ESQueryProcessor {
 	
-	public static void main(String[] args) throws IOException {
+	static final File DOC_LENGTH_FILE = new File(System.getProperty("query.docLengthFile", "stats/doclengths.bin"));
+	static final File DOCNO_FILE = new File(System.getProperty("query.docnoFile", "stats/docnos.bin"));
+	static final File CORPUS_FILE = new File(System.getProperty("query.corpusFile", "stats/corpus.bin"));
+	static final int QUERY_THREADS = Integer.getInteger("query.threads", 4);
+	static final String MODELS = System.getProperty("query.models", "all");
+	static final boolean SERVER_SIDE = Boolean.parseBoolean(System.getProperty("query.serverSide", "false"));
+	static final boolean SHARDED = Boolean.parseBoolean(System.getProperty("query.sharded", "false"));
+	
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
 	
 		HashSet<String> hashUselessWords = ESUtils.createHashSetStopAndExtra();
-		List<String> queryWords = Lists.newArrayList();
 		File queryFile = new File("src/main/resources/query_desc.51-100.short.txt");
 		
-		BufferedReader bufferedReader = new BufferedReader(new FileReader(queryFile));
-		String queryLine; 
-		String queryNum;
-		
-		HashMap<String,Double> docNumLengthMap = Maps.newHashMap();
-		HashMap<String,Double> termFreqCorpus = Maps.newHashMap();
+		ClusterConnection connection = ClusterConnection.open();
+		Client client = connection.client();
 		
-		HashMap<String,Double> okaptfScoreQueryPerDoc = Maps.newHashMap();
-		HashMap<String,Double> tfIdfScoreQueryPerDoc = Maps.newHashMap();
-		HashMap<String,Double> okapiBM25ScoreQueryPerDoc = Maps.newHashMap();
-		HashMap<String,Double> uniLaplaceScoreQueryPerDoc = Maps.newHashMap();
-		HashMap<String,Double> uniJMScoreQueryPerDoc = Maps.newHashMap();
+		QueryContext context = openContext(client, ESModels.forNames(MODELS));
 		
-		HashMap<String,List<String>> lmHelper = Maps.newHashMap();
-		
-		Node node = nodeBuilder().node();
-		Client client = node.client();
-		
-		double V = ESUtils.vocabSize(client);
-		double avgDocLength = ESUtils.avgDocLengthCountFunction(client,"avgLength");
-		double numOfDocs = ESUtils.avgDocLengthCountFunction(client,"totalDocs");
-		double docLengthC = ESUtils.avgDocLengthCountFunction(client, "lengthOfCorpus");
+		ExecutorService queryPool = Executors.newFixedThreadPool(QUERY_THREADS);
+		List<Future<QueryResult>> results = Lists.newArrayList();
+		for(String[] query : readQueries(queryFile, hashUselessWords)) {
+			System.out.println(query[0]);
+			System.out.println(query[1]);
+			results.add(queryPool.submit(task(context, query[0], query[1], hashUselessWords)));
+		}
+		queryPool.shutdown();
 		
-		File okaptfFile = new File("output/okaptf.txt");
-		if (okaptfFile.exists())
-			okaptfFile.delete();
-		okaptfFile.createNewFile();
+		String run = (SERVER_SIDE ? "query-serverSide" : SHARDED ? "query-sharded" : "query")
+				+ (FeedbackQueryTask.ENABLED ? "-prf" : "");
+		RunWriter runWriter = new RunWriter(new File("output"));
+		List<QueryResult> done = Lists.newArrayList();
+		for(Future<QueryResult> result : results) {
+			done.add(result.get());
+			runWriter.write(done.get(done.size() - 1));
+		}
+		runWriter.close();
+		TrecEvaluator.evaluateRun(run, done);
+		Metrics.writeSummary(run);
 		
-		File tfIdfFile = new File("output/tfidf.txt");
-		if (tfIdfFile.exists())
-			tfIdfFile.delete();
-		tfIdfFile.createNewFile();
+		connection.close();
+	
+	}
+	
+	/*
+	 * Returns the task scoring the query the way the run is configured, with
+	 * the feedback stage first when -Dquery.prf=true
+	 */
+	static Callable<QueryResult> task(QueryContext context, String queryNum, String queryString,
+			HashSet<String> hashUselessWords) {
 		
-		File okapiBM25File = new File("output/okapiBM25.txt");
-		if (okapiBM25File.exists())
-			okapiBM25File.delete();
-		okapiBM25File.createNewFile();
+		if(FeedbackQueryTask.ENABLED)
+			return new FeedbackQueryTask(context, queryNum, queryString, hashUselessWords);
+		return task(context, queryNum, ESUtils.termFreqInQuery(queryString));
+	}
+	
+	/*
+	 * Returns the task scoring the weighted query terms
+	 */
+	static Callable<QueryResult> task(QueryContext context, String queryNum, Map<String,Double> termFreqQueryMap) {
 		
+		if(SERVER_SIDE)
+			return new ServerSideQueryTask(context, queryNum, termFreqQueryMap);
+		if(SHARDED)
+			return new ShardedQueryTask(context, queryNum, termFreqQueryMap);
+		return new QueryTask(context, queryNum, termFreqQueryMap);
+	}
+	
+	/*
+	 * Loads the document lengths, docnos and corpus statistics (building
+	 * whatever is missing or stale) and opens the postings cache
+	 */
+	static QueryContext openContext(Client client, List<RetrievalModel> models) throws IOException {
 		
-		File uniLaplaceFile = new File("output/uniLaplace.txt");
-		if (uniLaplaceFile.exists()) 
-			uniLaplaceFile.delete();
-		uniLaplaceFile.createNewFile();
+		long start = System.nanoTime();
+		IndexStatistics statistics = IndexStatistics.loadOrBuild(client);
+		DocLengthStore docLengths = statistics.docLengths;
+		DocnoDictionary dictionary = statistics.dictionary;
+		CorpusStatistics corpus = statistics.corpus;
+		Metrics.record("query.statsLoad", start);
+		PostingsCache postingsCache = PostingsCache.ENABLED && !SERVER_SIDE && !SHARDED
+				? PostingsCache.open(PostingsCache.DIR, corpus.getIndexVersion(), PostingsCache.MAX_BYTES, dictionary)
+				: null;
+		return new QueryContext(client, docLengths, dictionary, corpus, models, postingsCache);
+	}
+	
+	/*
+	 * Reads the query file and returns {queryNum, queryString} pairs with the
+	 * stop words removed, in file order.
+	 */
+	static List<String[]> readQueries(File queryFile, HashSet<String> hashUselessWords) throws IOException {
 		
-		File uniJMFile = new File("output/uniJM.txt");
-		if (uniJMFile.exists()) 
-			uniJMFile.delete();
-		uniJMFile.createNewFile();
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(queryFile));
+		try {
+			return readQueries(bufferedReader, hashUselessWords);
+		} finally {
+			bufferedReader.close();
+		}
+	}
+	
+	static List<String[]> readQueries(BufferedReader bufferedReader, HashSet<String> hashUselessWords) throws IOException {
 		
+		List<String[]> queries = Lists.newArrayList();
+		String queryLine; 
 		
 		while((queryLine = bufferedReader.readLine())!=null) {
-			StringBuilder queryString = new StringBuilder();
 			//Remove ending empty lines
 			queryLine = queryLine.trim();
 			if(queryLine.equals(""))
 				continue;
-			queryNum = queryLine.replaceAll("^([0-9]+).*", "$1");
-			System.out.println(queryNum);
+			String queryNum = queryLine.replaceAll("^([0-9]+).*", "$1");
 			
 			queryLine = queryLine.replaceAll("\\,(\\s)|\\.$", " ");
 			
 			String[] splitQuery = queryLine.split("^[0-9]+\\.\\s+(Document)\\s([a-z]+)\\s([a-z]+) ");
 
-			for(String term: splitQuery[1].split(" ")) {
-				if(!hashUselessWords.contains(term))
-					queryWords.add(term);
-			}
-			
-			for(String term: queryWords) {
-				queryString.append(term).append(" ");
-			}
-			
-			System.out.println(queryString.toString());
-			
-			HashMap<String,Double> termFreqQueryMap = ESUtils.termFreqInQuery(queryString.toString());
-			
-			for(Map.Entry<String, Double> termKey : termFreqQueryMap.entrySet()) {
-				
-				String term = termKey.getKey();
-				double tfq = termFreqQueryMap.get(term);
-				
-				CountResponse countResponse = client.prepareCount("ap_dataset")
-				        .setQuery(matchQuery("text", term))
-				        .execute()
-				        .actionGet();
-				double docFreq = countResponse.getCount();
-				SearchResponse response = client.prepareSearch("ap_dataset")
-				        .setTypes("document")
-				        .setQuery(QueryBuilders.matchQuery("text", term))
-				        .setFrom(0).setSize((int)docFreq).setExplain(true)
-				        .execute()
-				        .actionGet();
-				
-				SearchHit[] responseString = response.getHits().getHits();
-				
-				if(!termFreqCorpus.containsKey(term)) {
-					double tfdC = ESUtils.calculateTermFreqCorpus(responseString);
-					termFreqCorpus.put(term, tfdC);
-				}
-				
-				
-				for (SearchHit searchHit : responseString) {
-					
-					double tfd = 0.0;
-					String id = searchHit.getId();
-					String docno = searchHit.getSource().values().toArray()[1].toString(); // docno
-				
-					String termFreq = searchHit.getExplanation().getDetails()[0].toString();
-					
-					Pattern termFreqPattern = Pattern.compile("termFreq=([0-9]+).0");
-					Matcher termFreqMatcher = termFreqPattern.matcher(termFreq);
-					if (termFreqMatcher.find()){
-						tfd = Double.parseDouble(termFreqMatcher.group(1));;
-					}					
-					if(!docNumLengthMap.containsKey(docno)) {
-						double docLength = ESUtils.docLengthFunction(id,client);
-						docNumLengthMap.put(docno, docLength);
-					}
-					
-					double okaptfScore = ESModels.okaptf(tfd,docNumLengthMap.get(docno),avgDocLength);
-					double tfIdfScore = ESModels.tfIdf(okaptfScore, numOfDocs, docFreq);
-					double okapiBM25Score = ESModels.okapiBM25(tfd, tfq, numOfDocs, docFreq, docNumLengthMap.get(docno), avgDocLength);
-					double uniLaplaceScore = ESModels.unigramLMLaplaceSmoothing(tfd, docNumLengthMap.get(docno), V);
-					double uniJMScore = ESModels.unigramLMJelinekMercerSmoothing(tfd, avgDocLength, termFreqCorpus.get(term), docLengthC); //tfdC
-
-					
-					if(!okaptfScoreQueryPerDoc.containsKey(docno)) {
-						okaptfScoreQueryPerDoc.put(docno, okaptfScore);
-						tfIdfScoreQueryPerDoc.put(docno, tfIdfScore);
-						okapiBM25ScoreQueryPerDoc.put(docno, okapiBM25Score);
-						
-						uniLaplaceScoreQueryPerDoc.put(docno, uniLaplaceScore);
-						
-						List<String> tempList = new ArrayList<String>();
-						tempList.add(term);
-						List<String> lmListPerDoc = tempList;
-						lmHelper.put(docno, lmListPerDoc);
-						
-						uniJMScoreQueryPerDoc.put(docno, uniJMScore);
-					} else {
-						double storedOkaptfScore = okaptfScoreQueryPerDoc.get(docno);
-						okaptfScoreQueryPerDoc.put(docno, storedOkaptfScore + okaptfScore);
-						
-						double storedTfIdfScore = tfIdfScoreQueryPerDoc.get(docno);
-						tfIdfScoreQueryPerDoc.put(docno, storedTfIdfScore + tfIdfScore);
-						
-						double storedOkapiBM25Score = okapiBM25ScoreQueryPerDoc.get(docno);
-						okapiBM25ScoreQueryPerDoc.put(docno, storedOkapiBM25Score + okapiBM25Score);
-						
-						double storedUniLaplaceScore = uniLaplaceScoreQueryPerDoc.get(docno);
-						uniLaplaceScoreQueryPerDoc.put(docno, storedUniLaplaceScore + uniLaplaceScore);
-						
-						List<String> tempList = new ArrayList<String>();
-						tempList = lmHelper.get(docno);
-						tempList.add(term);
-						lmHelper.put(docno, tempList);
-						
-						double storedUniJMfScore = uniJMScoreQueryPerDoc.get(docno);
-						uniJMScoreQueryPerDoc.put(docno, storedUniJMfScore + uniJMScore);
-						
-					}
-					
-				}
-			
-			}
-			
-			// Update score for non-occurring terms in the documents
-			List<HashMap<String,Double>> lmMaps = ESModels.lmNonTerms(lmHelper,
-					uniLaplaceScoreQueryPerDoc,
-					uniJMScoreQueryPerDoc,
-					termFreqQueryMap,
-					termFreqCorpus,
-					docNumLengthMap,
-					docLengthC,
-					V);
-
-			uniLaplaceScoreQueryPerDoc = lmMaps.get(0);
-			uniJMScoreQueryPerDoc = lmMaps.get(1);
-			
-			// Sort according to score
-			List<HashMap.Entry<String,Double>> sortedOkaptfScore = Lists.newLinkedList(okaptfScoreQueryPerDoc.entrySet());
-			List<HashMap.Entry<String,Double>> sortedTfIdfScore = Lists.newLinkedList(tfIdfScoreQueryPerDoc.entrySet());
-			List<HashMap.Entry<String,Double>> sortedOkapiBM25Score = Lists.newLinkedList(okapiBM25ScoreQueryPerDoc.entrySet());
-			List<HashMap.Entry<String,Double>> sortedUniLaplaceScore = Lists.newLinkedList(uniLaplaceScoreQueryPerDoc.entrySet());
-			List<HashMap.Entry<String,Double>> sortedUniJMScore = Lists.newLinkedList(uniJMScoreQueryPerDoc.entrySet());
-			
-			Collections.sort(sortedOkaptfScore, new Comparator<HashMap.Entry<String,Double>>(){
-				public int compare(HashMap.Entry<String,Double> score1,HashMap.Entry<String,Double> score2) {
-					return score2.getValue().compareTo(score1.getValue());
-				}
-			});
-			Collections.sort(sortedTfIdfScore, new Comparator<HashMap.Entry<String,Double>>(){
-				public int compare(HashMap.Entry<String,Double> score1,HashMap.Entry<String,Double> score2) {
-					return score2.getValue().compareTo(score1.getValue());
-				}
-			});
-			Collections.sort(sortedOkapiBM25Score, new Comparator<HashMap.Entry<String,Double>>(){
-				public int compare(HashMap.Entry<String,Double> score1,HashMap.Entry<String,Double> score2) {
-					return score2.getValue().compareTo(score1.getValue());
-				}
-			});
-			Collections.sort(sortedUniLaplaceScore, new Comparator<HashMap.Entry<String,Double>>(){
-				public int compare(HashMap.Entry<String,Double> score1,HashMap.Entry<String,Double> score2) {
-					return score2.getValue().compareTo(score1.getValue());
-				}
-			});
-			Collections.sort(sortedUniJMScore, new Comparator<HashMap.Entry<String,Double>>(){
-				public int compare(HashMap.Entry<String,Double> score1,HashMap.Entry<String,Double> score2) {
-					return score2.getValue().compareTo(score1.getValue());
-				}
-			});
-			
-			FileWriter okaptfWriter = new FileWriter(okaptfFile,true);
-			BufferedWriter okaptfBufWriter = new BufferedWriter(okaptfWriter);
-			int rank=1;
-			for (Entry<String, Double> list : sortedOkaptfScore) {
-				okaptfBufWriter.write(queryNum+" Q0 "+list.getKey()+" "+ rank++ +" "+list.getValue()+" Exp\n");
-				if(rank==1001) {
-					break;
-				}
-			}
-			okaptfBufWriter.close();
-			
-			FileWriter tfIdfWriter = new FileWriter(tfIdfFile,true);
-			BufferedWriter tfIdfBufWriter = new BufferedWriter(tfIdfWriter);
-			rank=1;
-			for (Entry<String, Double> list : sortedTfIdfScore) {
-				tfIdfBufWriter.write(queryNum+" Q0 "+list.getKey()+" "+ rank++ +" "+list.getValue()+" Exp\n");
-				if(rank==1001) {
-					break;
-				}
-			}
-			tfIdfBufWriter.close();
-			
-			FileWriter okapiBM25Writer = new FileWriter(okapiBM25File,true);
-			BufferedWriter okapiBM25BufWriter = new BufferedWriter(okapiBM25Writer);
-			rank=1;
-			for (Entry<String, Double> list : sortedOkapiBM25Score) {
-				okapiBM25BufWriter.write(queryNum+" Q0 "+list.getKey()+" "+ rank++ +" "+list.getValue()+" Exp\n");
-				if(rank==1001) {
-					break;
-				}
-			}
-			okapiBM25BufWriter.close();
-
-			FileWriter uniLaplaceWriter = new FileWriter(uniLaplaceFile,true);
-			BufferedWriter uniLaplaceBufWriter = new BufferedWriter(uniLaplaceWriter);
-			rank=1;
-			for (Entry<String, Double> list : sortedUniLaplaceScore) {
-				uniLaplaceBufWriter.write(queryNum+" Q0 "+list.getKey()+" "+ rank++ +" "+list.getValue()+" Exp\n");
-				if(rank==1001) {
-					break;
-				}
-			}
-			uniLaplaceBufWriter.close();
-
-			FileWriter uniJMWriter = new FileWriter(uniJMFile,true);
-			BufferedWriter uniJMBufWriter = new BufferedWriter(uniJMWriter);
-			rank=1;
-			for (Entry<String, Double> list : sortedUniJMScore) {
-				uniJMBufWriter.write(queryNum+" Q0 "+list.getKey()+" "+ rank++ +" "+list.getValue()+" Exp\n");
-				if(rank==1001) {
-					break;
-				}
-			}
-			uniJMBufWriter.close();
-			
-			queryString.setLength(0);
-			queryWords.clear();
-			
-			okaptfScoreQueryPerDoc.clear();
-			tfIdfScoreQueryPerDoc.clear();
-			okapiBM25ScoreQueryPerDoc.clear();
-			uniLaplaceScoreQueryPerDoc.clear();
-			uniJMScoreQueryPerDoc.clear();
-			
-			lmHelper.clear();
-			termFreqQueryMap.clear();
+			queries.add(new String[] {queryNum, removeStopWords(splitQuery[1], hashUselessWords)});
 		}
-		
-		node.close();
-		client.close();
-		bufferedReader.close();
+		return queries;
+	}
 	
+	/*
+	 * Returns the space separated terms of the text that are not stop words
+	 */
+	static String removeStopWords(String text, HashSet<String> hashUselessWords) {
+		
+		StringBuilder queryString = new StringBuilder();
+		for(String term: text.split(" ")) {
+			if(!hashUselessWords.contains(term))
+				queryString.append(term).append(" ");
+		}
+		return queryString.toString();
 	}
-}
\ No newline at end of file
+}
@@ -15,25 +15,34 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.termvector.TermVectorResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.metrics.cardinality.InternalCardinality;
 import org.elasticsearch.search.facet.statistical.StatisticalFacet;
 
 public class ESUtils {
 
+	// Same analysis as the text_standard analyzer of the text field
+	private static final Analyzer QUERY_ANALYZER = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+
 	/*
 	 * Function to create a HashSet for all the stopwords. File stoplist.txt 
 	 * needs to exist at src/main/resources. 
@@ -55,33 +64,66 @@ public class ESUtils {
 	}
 
 	/*
-	 * Function to calculate document length for the given doument id
+	 * Function to calculate document length for the given doument id.
+	 * Only term frequencies are requested, DocLengthStore should be
+	 * preferred when more than a handful of lengths are needed.
 	 */
 	static double docLengthFunction(String id, Client client) throws IOException {
 		
-		double docLength = 0;
 		TermVectorResponse termVector = 
 		client.prepareTermVector("ap_dataset","document",id)
-		.setTermStatistics(true)
-		.setFieldStatistics(true)
-		.setOffsets(true)
-		.setPayloads(true)
-		.setPositions(true)
+		.setTermStatistics(false)
+		.setFieldStatistics(false)
+		.setOffsets(false)
+		.setPayloads(false)
+		.setPositions(false)
 		.setSelectedFields("text")
 		.execute()
 		.actionGet();
 		
-		Fields fields = termVector.getFields();
+		return sumTermFreqs(termVector.getFields());
+	}
+	
+	/*
+	 * Function to add the frequency of every token the analyzer produces for
+	 * a text to termFreqs. Returns the number of tokens.
+	 */
+	static int termFreqs(Analyzer analyzer, String text, Map<String,Integer> termFreqs) throws IOException {
+		
+		int tokens = 0;
+		TokenStream tokenStream = analyzer.tokenStream("text", text);
+		try {
+			CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while(tokenStream.incrementToken()) {
+				String token = termAttribute.toString();
+				Integer tf = termFreqs.get(token);
+				termFreqs.put(token, tf == null ? 1 : tf + 1);
+				tokens++;
+			}
+			tokenStream.end();
+		} finally {
+			tokenStream.close();
+		}
+		return tokens;
+	}
+	
+	/*
+	 * Function to sum the term frequencies of a term vector
+	 */
+	static double sumTermFreqs(Fields fields) throws IOException {
+		
+		double docLength = 0;
+		DocsEnum docsEnum = null;
 		for(String field : fields) {
 		    Terms terms = fields.terms(field);
 		    TermsEnum termsEnum = terms.iterator(null);
 		    
-		    BytesRef text;
-		    while((text = termsEnum.next()) != null) {
-		    	docLength = docLength + termsEnum.docs(null, null).freq(); // term frequency
+		    while(termsEnum.next() != null) {
+		    	docsEnum = termsEnum.docs(null, docsEnum);
+		    	docLength = docLength + docsEnum.freq(); // term frequency
 		    }
 		}
-		
 		return docLength;
 	}
 	
@@ -90,6 +132,22 @@ public class ESUtils {
 	 */
 	static double avgDocLengthCountFunction(Client client, String type) throws IOException {
 		
+		StatisticalFacet statFacet = docLengthFacet(client);
+		if(type.equalsIgnoreCase("avgLength")) {
+			return statFacet.getMean();
+		} else if (type.equalsIgnoreCase("lengthOfCorpus")) {
+			return statFacet.getTotal();
+		} else {
+			return statFacet.getCount();
+		}
+	}
+	
+	/*
+	 * Function to retrieve the statistical facet over document lengths
+	 * (mean, total and count in one request)
+	 */
+	static StatisticalFacet docLengthFacet(Client client) throws IOException {
+		
 		XContentBuilder facetBuilder = 
 				jsonBuilder().startObject()
 				.startObject("query")
@@ -109,18 +167,14 @@ public class ESUtils {
 				.execute()
 				.actionGet();
 	
-		StatisticalFacet statFacet = (StatisticalFacet) statResponse.getFacets().facetsAsMap().get("text");
-		if(type.equalsIgnoreCase("avgLength")) {
-			return statFacet.getMean();
-		} else if (type.equalsIgnoreCase("lengthOfCorpus")) {
-			return statFacet.getTotal();
-		} else {
-			return statFacet.getCount();
-		}
+		return (StatisticalFacet) statResponse.getFacets().facetsAsMap().get("text");
 	}
 	
 	/*
-	 * Function to create a HashMap of Term Frequencies in a Query
+	 * Function to create a HashMap of Term Frequencies in a Query. A term the
+	 * text field analyzer splits into several tokens (hostage-taking, u.s.)
+	 * counts as each of its tokens, like the match query it replaced; any
+	 * other term is kept as written and analyzed when its postings are read.
 	 */
 	static HashMap<String,Double> termFreqInQuery(String query) {
 		
@@ -128,33 +182,64 @@ public class ESUtils {
 		
 		String[] splitQuery = query.split(" ");
 		for(String term: splitQuery) {
-			if(termFreqQueryMap.containsKey(term)) {
-				Double countTerm = termFreqQueryMap.get(term);
-				termFreqQueryMap.put(term, countTerm + 1.0);
-			} else {
-				termFreqQueryMap.put(term,1.0);
+			List<String> tokens = queryTokens(term);
+			if(tokens.size() <= 1) {
+				addQueryTerm(termFreqQueryMap, term);
+				continue;
+			}
+			for(String token: tokens) {
+				addQueryTerm(termFreqQueryMap, token);
 			}
 		}
 		return termFreqQueryMap;	
 	}
 	
+	private static void addQueryTerm(HashMap<String,Double> termFreqQueryMap, String term) {
+		
+		if(termFreqQueryMap.containsKey(term)) {
+			Double countTerm = termFreqQueryMap.get(term);
+			termFreqQueryMap.put(term, countTerm + 1.0);
+		} else {
+			termFreqQueryMap.put(term,1.0);
+		}
+	}
+	
 	/*
-	 * Function to calculate term frequency in the whole corpus
+	 * Function to return the tokens of a query term, with the analysis of
+	 * the text field (standard analyzer without stop words)
 	 */
-	static double calculateTermFreqCorpus(SearchHit[] responseString) {
-		
-		double termFreq=0.0;
-		
-		Pattern termFreqPattern = Pattern.compile("termFreq=([0-9]+).0");
+	static List<String> queryTokens(String term) {
 		
-		for (SearchHit searchHit: responseString) {
-			String termFreqString = searchHit.getExplanation().getDetails()[0].toString();
-			Matcher termFreqMatcher = termFreqPattern.matcher(termFreqString);
-			if (termFreqMatcher.find()){
-				termFreq = termFreq + Double.parseDouble(termFreqMatcher.group(1)); // Term Frequency TF
+		List<String> tokens = Lists.newArrayList();
+		if(term.isEmpty())
+			return tokens;
+		try {
+			TokenStream tokenStream = QUERY_ANALYZER.tokenStream("text", term);
+			try {
+				CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+				tokenStream.reset();
+				while(tokenStream.incrementToken()) {
+					tokens.add(termAttribute.toString());
+				}
+				tokenStream.end();
+			} finally {
+				tokenStream.close();
 			}
+		} catch(IOException e) {
+			throw new ElasticsearchException("cannot analyze " + term, e);
+		}
+		return tokens;
+	}
+	
+	/*
+	 * Function to move a completely written temporary file over the given
+	 * file, so a crash never leaves a truncated file behind
+	 */
+	static void moveOver(File tmp, File file) throws IOException {
+		
+		if(!tmp.renameTo(file)) {
+			throw new IOException("Cannot move " + tmp + " to " + file);
 		}
-		return termFreq;
 	}
 	
 	/*
@@ -0,0 +1,233 @@
+package elasticsearch;
+
+/**
+ *  FeedbackQueryTask adds pseudo relevance feedback to a query: the query is
+ *  run once, the strongest terms of its top documents are added to it and
+ *  the expanded query is run again through the same task
+ *  (see ESQueryProcessor.task).
+ *
+ *  The term vectors of the -Dquery.prfDocs best documents of -Dquery.prfModel
+ *  (or of the first model of the run when that one is not selected) come
+ *  back in one multi term vector request, frequencies only. A candidate term
+ *  is weighted by
+ *
+ *  	idf(t) * sum over the feedback documents of tf(t,d) / |d|
+ *
+ *  averaged over the documents, in primitive arrays indexed by a term to slot
+ *  map. Stop words, numbers and the query terms are skipped. The idf uses the
+ *  document frequencies of the whole index kept in the corpus statistics
+ *  snapshot, since those of term vectors only cover the document's shard.
+ *
+ *  The -Dquery.prfTerms best terms join the query with a weight scaled to
+ *  -Dquery.prfWeight for the best one. Every model scales the score of a term
+ *  by that weight (okapiBM25 through its tfq factor, see TermStats), so the
+ *  expanded query gives the final ranking of all models.
+ *
+ *  On top of the two retrievals a query costs one round trip.
+ *
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.termvector.MultiTermVectorsItemResponse;
+import org.elasticsearch.action.termvector.MultiTermVectorsRequestBuilder;
+import org.elasticsearch.action.termvector.MultiTermVectorsResponse;
+import org.elasticsearch.action.termvector.TermVectorRequest;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.hppc.ObjectIntOpenHashMap;
+
+public class FeedbackQueryTask implements Callable<QueryResult> {
+
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("query.prf", "false"));
+	static final int FEEDBACK_DOCS = Integer.getInteger("query.prfDocs", 10);
+	static final int EXPANSION_TERMS = Integer.getInteger("query.prfTerms", 10);
+	static final String FEEDBACK_MODEL = System.getProperty("query.prfModel", "okapiBM25");
+	static final double EXPANSION_WEIGHT = Double.parseDouble(System.getProperty("query.prfWeight", "0.5"));
+
+	private final QueryContext context;
+	private final String queryNum;
+	private final String queryString;
+	private final HashSet<String> hashUselessWords;
+
+	public FeedbackQueryTask(QueryContext context, String queryNum, String queryString, HashSet<String> hashUselessWords) {
+		this.context = context;
+		this.queryNum = queryNum;
+		this.queryString = queryString;
+		this.hashUselessWords = hashUselessWords;
+	}
+
+	public QueryResult call() throws Exception {
+
+		long start = System.nanoTime();
+		Metrics.beginQuery();
+		try {
+			Map<String,Double> termFreqQueryMap = ESUtils.termFreqInQuery(queryString);
+			QueryResult initial = ESQueryProcessor.task(context, queryNum, termFreqQueryMap).call();
+			Map<String,Double> expanded = expand(termFreqQueryMap, feedbackRanking(initial));
+			return ESQueryProcessor.task(context, queryNum, expanded).call();
+		} finally {
+			Metrics.endQuery();
+			Metrics.record("query.feedbackTotal", start);
+		}
+	}
+
+	private Ranking feedbackRanking(QueryResult initial) {
+
+		Ranking ranking = initial.getRankings().get(FEEDBACK_MODEL);
+		return ranking != null ? ranking : initial.getRankings().values().iterator().next();
+	}
+
+	/*
+	 * Returns the query terms with the expansion terms of the feedback
+	 * documents added
+	 */
+	Map<String,Double> expand(Map<String,Double> termFreqQueryMap, Ranking feedback) throws IOException {
+
+		long start = System.nanoTime();
+		Map<String,Double> expanded = new HashMap<String,Double>(termFreqQueryMap);
+		List<String> ids = Lists.newArrayList();
+		for (int rank = 0; rank < Math.min(FEEDBACK_DOCS, feedback.size()); rank++) {
+			int docId = context.dictionary.docId(feedback.docno(rank));
+			if (docId >= 0)
+				ids.add(String.valueOf(docId));
+		}
+		// Stay within the query terms the accumulator can track
+		int expansionTerms = Math.min(EXPANSION_TERMS, ScoreAccumulator.MAX_QUERY_TERMS - termFreqQueryMap.size());
+		if (ids.isEmpty() || expansionTerms <= 0)
+			return expanded;
+
+		// Query terms in their indexed form, so they are not added twice
+		String[] terms = termFreqQueryMap.keySet().toArray(new String[termFreqQueryMap.size()]);
+		Set<String> queryTokens = Sets.newHashSet(context.fetcher.tokens(terms));
+
+		MultiTermVectorsRequestBuilder termVectors = context.client.prepareMultiTermVectors();
+		for (String id : ids) {
+			termVectors.add(new TermVectorRequest(PostingsFetcher.INDEX, PostingsFetcher.TYPE, id)
+					.selectedFields(new String[] {PostingsFetcher.FIELD})
+					.offsets(false)
+					.positions(false)
+					.payloads(false)
+					.termStatistics(false)
+					.fieldStatistics(false));
+		}
+		Metrics.roundTrip("termVectors");
+		MultiTermVectorsResponse response = termVectors.execute().actionGet();
+		Metrics.received(response);
+
+		// Candidate terms get a slot; weights are kept by slot
+		ObjectIntOpenHashMap<String> slots = new ObjectIntOpenHashMap<String>();
+		String[] tokens = new String[256];
+		double[] weights = new double[256];
+		int[] docSlots = new int[256];
+		int[] docTfs = new int[256];
+		int feedbackDocs = 0;
+
+		for (MultiTermVectorsItemResponse item : response.getResponses()) {
+			if (item.isFailed())
+				continue;
+			Terms vector = item.getResponse().getFields().terms(PostingsFetcher.FIELD);
+			if (vector == null)
+				continue;
+			feedbackDocs++;
+
+			int docTerms = 0;
+			long docLength = 0;
+			TermsEnum termsEnum = vector.iterator(null);
+			DocsEnum docsEnum = null;
+			BytesRef text;
+			while ((text = termsEnum.next()) != null) {
+				docsEnum = termsEnum.docs(null, docsEnum);
+				int tf = docsEnum.freq();
+				docLength += tf;
+				String token = text.utf8ToString();
+				if (queryTokens.contains(token) || hashUselessWords.contains(token) || isNumber(token))
+					continue;
+
+				int slot;
+				if (slots.containsKey(token)) {
+					slot = slots.lget();
+				} else {
+					slot = slots.size();
+					if (slot == tokens.length) {
+						tokens = Arrays.copyOf(tokens, slot * 2);
+						weights = Arrays.copyOf(weights, slot * 2);
+					}
+					slots.put(token, slot);
+					tokens[slot] = token;
+				}
+				if (docTerms == docSlots.length) {
+					docSlots = Arrays.copyOf(docSlots, docTerms * 2);
+					docTfs = Arrays.copyOf(docTfs, docTerms * 2);
+				}
+				docSlots[docTerms] = slot;
+				docTfs[docTerms] = tf;
+				docTerms++;
+			}
+			for (int i = 0; i < docTerms; i++) {
+				weights[docSlots[i]] += (double) docTfs[i] / docLength;
+			}
+		}
+
+		// Weigh the candidates with the document frequencies of the index
+		int candidates = slots.size();
+		double[] scores = new double[candidates];
+		for (int slot = 0; slot < candidates; slot++) {
+			long docFreq = context.corpus.docFreq(tokens[slot]);
+			scores[slot] = docFreq > 0 ? weights[slot] / feedbackDocs * Math.log(context.corpus.numOfDocs / docFreq) : 0;
+		}
+		int[] best = new int[Math.min(expansionTerms, candidates)];
+		double[] bestWeights = new double[best.length];
+		int selected = top(scores, best, bestWeights);
+		for (int i = 0; i < selected; i++) {
+			expanded.put(tokens[best[i]], EXPANSION_WEIGHT * bestWeights[i] / bestWeights[0]);
+		}
+		Metrics.recordValue("query.expansionTerms", selected);
+		Metrics.record("query.feedback", start);
+		return expanded;
+	}
+
+	/*
+	 * Puts the indexes of the best positive scores into best, best first, and
+	 * returns how many were found
+	 */
+	private static int top(double[] scores, int[] best, double[] bestScores) {
+
+		int selected = 0;
+		for (int index = 0; index < scores.length; index++) {
+			double score = scores[index];
+			if (score <= 0 || best.length == 0 || (selected == best.length && score <= bestScores[selected - 1]))
+				continue;
+			int position = selected < best.length ? selected++ : selected - 1;
+			while (position > 0 && bestScores[position - 1] < score) {
+				best[position] = best[position - 1];
+				bestScores[position] = bestScores[position - 1];
+				position--;
+			}
+			best[position] = index;
+			bestScores[position] = score;
+		}
+		return selected;
+	}
+
+	private static boolean isNumber(String token) {
+
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if ((c < '0' || c > '9') && c != '.' && c != ',')
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,262 @@
+package elasticsearch;
+
+/**
+ *  IndexManifest records the indexing progress of every collection file so
+ *  ESIndexer can resume after a crash and index only new data on later runs.
+ *  
+ *  For each file it keeps the size and modification time seen when it was
+ *  indexed, the number of documents in the file once it was parsed to the
+ *  end, and a checkpoint: how many leading documents are acknowledged by
+ *  Elasticsearch, and the docno of the last of them. Bulk responses arrive
+ *  out of order, so documents acknowledged past the checkpoint are held
+ *  until the gap closes.
+ *  
+ *  Document ids are derived from the docno. AP89 docnos (AP89MMDD-NNNN) map
+ *  to ((MM-1)*31 + DD-1)*1024 + NNNN; any other docno gets the next id above
+ *  that range, and the assignment is kept in the manifest so it is stable.
+ *  
+ *  The manifest also remembers the uuid of the index it describes and how
+ *  many documents the saved corpus statistics cover (-1 if they are not
+ *  incremental). It is saved as JSON to stats/manifest.json.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+
+public class IndexManifest {
+
+	static final File FILE = new File(System.getProperty("indexer.manifest", "stats/manifest.json"));
+	static final int VERSION = 1;
+
+	static final int SEQUENCE_SLOTS = 1024;
+	static final int OVERFLOW_BASE = 12 * 31 * SEQUENCE_SLOTS;
+
+	private String indexUuid = "";
+	private long statisticsDocs;
+	private int nextOverflowId = OVERFLOW_BASE;
+	private final Map<String,Integer> overflowIds = new HashMap<String,Integer>();
+	private final Map<String,FileState> files = new TreeMap<String,FileState>();
+
+	/*
+	 * Derives the document id of a docno
+	 */
+	synchronized int docId(String docno) {
+
+		int docId = ap89DocId(docno);
+		if (docId >= 0)
+			return docId;
+		Integer overflowId = overflowIds.get(docno);
+		if (overflowId == null) {
+			overflowId = nextOverflowId++;
+			overflowIds.put(docno, overflowId);
+		}
+		return overflowId;
+	}
+
+	/*
+	 * Id of an AP89MMDD-NNNN docno, or -1 for any other docno
+	 */
+	static int ap89DocId(String docno) {
+
+		if (docno.length() != 13 || !docno.startsWith("AP89") || docno.charAt(8) != '-')
+			return -1;
+		int month = digits(docno, 4, 6);
+		int day = digits(docno, 6, 8);
+		int sequence = digits(docno, 9, 13);
+		if (month < 1 || month > 12 || day < 1 || day > 31 || sequence < 0 || sequence >= SEQUENCE_SLOTS)
+			return -1;
+		return ((month - 1) * 31 + day - 1) * SEQUENCE_SLOTS + sequence;
+	}
+
+	private static int digits(String value, int from, int to) {
+
+		int number = 0;
+		for (int i = from; i < to; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			number = number * 10 + (c - '0');
+		}
+		return number;
+	}
+
+	synchronized FileState file(File file) {
+		return files.get(file.getName());
+	}
+
+	/*
+	 * Starts (or restarts) tracking a file from its first document
+	 */
+	synchronized FileState track(File file) {
+		FileState state = new FileState(file.getName(), file.length(), file.lastModified());
+		files.put(state.name, state);
+		return state;
+	}
+
+	synchronized String getIndexUuid() {
+		return indexUuid;
+	}
+
+	/*
+	 * Forgets all progress, for an index that was recreated
+	 */
+	synchronized void reset(String indexUuid) {
+		this.indexUuid = indexUuid;
+		this.statisticsDocs = 0;
+		files.clear();
+	}
+
+	synchronized long getStatisticsDocs() {
+		return statisticsDocs;
+	}
+
+	synchronized void setStatisticsDocs(long statisticsDocs) {
+		this.statisticsDocs = statisticsDocs;
+	}
+
+	static IndexManifest load(File file) throws IOException {
+
+		IndexManifest manifest = new IndexManifest();
+		if (!file.exists())
+			return manifest;
+
+		JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+		if (json.getInt("version") != VERSION) {
+			throw new IOException(file + " is not an index manifest of version " + VERSION);
+		}
+		manifest.indexUuid = json.getString("indexUuid");
+		manifest.statisticsDocs = json.getLong("statisticsDocs");
+		manifest.nextOverflowId = json.getInt("nextOverflowId");
+		JSONObject overflowIds = json.getJSONObject("overflowIds");
+		for (String docno : overflowIds.keySet()) {
+			manifest.overflowIds.put(docno, overflowIds.getInt(docno));
+		}
+		JSONObject files = json.getJSONObject("files");
+		for (String name : files.keySet()) {
+			JSONObject fileState = files.getJSONObject(name);
+			FileState state = new FileState(name, fileState.getLong("size"), fileState.getLong("mtime"));
+			state.documents = fileState.getInt("documents");
+			state.checkpoint = fileState.getInt("checkpoint");
+			state.lastDocno = fileState.optString("lastDocno", null);
+			manifest.files.put(name, state);
+		}
+		return manifest;
+	}
+
+	/*
+	 * Writes the manifest to a temporary file and moves it over the old one,
+	 * so a crash never leaves a truncated manifest
+	 */
+	synchronized void save(File file) throws IOException {
+
+		JSONObject json = new JSONObject();
+		json.put("version", VERSION);
+		json.put("indexUuid", indexUuid);
+		json.put("statisticsDocs", statisticsDocs);
+		json.put("nextOverflowId", nextOverflowId);
+		JSONObject overflow = new JSONObject();
+		for (Map.Entry<String,Integer> overflowId : overflowIds.entrySet()) {
+			overflow.put(overflowId.getKey(), overflowId.getValue());
+		}
+		json.put("overflowIds", overflow);
+		JSONObject fileStates = new JSONObject();
+		for (FileState state : files.values()) {
+			synchronized (state) {
+				JSONObject fileState = new JSONObject();
+				fileState.put("size", state.size);
+				fileState.put("mtime", state.mtime);
+				fileState.put("documents", state.documents);
+				fileState.put("checkpoint", state.checkpoint);
+				if (state.lastDocno != null)
+					fileState.put("lastDocno", state.lastDocno);
+				fileStates.put(state.name, fileState);
+			}
+		}
+		json.put("files", fileStates);
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer writer = new FileWriter(tmp);
+		try {
+			writer.write(json.toString(1));
+		} finally {
+			writer.close();
+		}
+		ESUtils.moveOver(tmp, file);
+	}
+
+	/*
+	 * Progress of one collection file
+	 */
+	static class FileState {
+
+		final String name;
+		final long size;
+		final long mtime;
+		// Number of documents in the file, -1 until it was parsed to the end
+		int documents = -1;
+		// Documents 0..checkpoint-1 are acknowledged
+		int checkpoint;
+		String lastDocno;
+
+		// Acknowledged documents past the checkpoint, by position
+		private final BitSet acknowledged = new BitSet();
+		private final Map<Integer,String> acknowledgedDocnos = new HashMap<Integer,String>();
+
+		FileState(String name, long size, long mtime) {
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		/*
+		 * Whether the file is unchanged since it was tracked
+		 */
+		boolean matches(File file) {
+			return file.length() == size && file.lastModified() == mtime;
+		}
+
+		synchronized boolean isComplete() {
+			return documents >= 0 && checkpoint >= documents;
+		}
+
+		synchronized int getCheckpoint() {
+			return checkpoint;
+		}
+
+		synchronized void parsed(int documents) {
+			this.documents = documents;
+		}
+
+		/*
+		 * Records the acknowledgement of the document at the given position
+		 * and moves the checkpoint over every contiguous acknowledged document.
+		 * Returns the new checkpoint.
+		 */
+		synchronized int acknowledge(int position, String docno) {
+
+			if (position < checkpoint)
+				return checkpoint;
+			acknowledged.set(position);
+			acknowledgedDocnos.put(position, docno);
+			while (acknowledged.get(checkpoint)) {
+				acknowledged.clear(checkpoint);
+				lastDocno = acknowledgedDocnos.remove(checkpoint);
+				checkpoint++;
+			}
+			return checkpoint;
+		}
+	}
+}
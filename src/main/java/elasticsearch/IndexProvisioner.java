@@ -0,0 +1,169 @@
+package elasticsearch;
+
+/**
+ *  IndexProvisioner creates the ap_dataset index with an explicit mapping
+ *  and wraps a bulk load in settings tuned for ingestion.
+ *  
+ *  Mapping of the document type:
+ *  	docno		not_analyzed string, stored
+ *  	text		standard analyzer without stop words, docs and freqs only
+ *  				(the models need tf, not positions), term vectors with
+ *  				freqs for the doc length and corpus statistics passes, no
+ *  				norms since document lengths are kept in doclength
+ *  	doclength	integer with doc values, read by the server side scripts
+ *  
+ *  During the load the index runs without refreshes and replicas. Afterwards,
+ *  also when the load failed, the previous refresh interval and replica
+ *  count are restored; a successful load is then refreshed and optimized
+ *  down to -Dindexer.maxSegments segments.
+ *  
+ *  @author Amod Samant
+ */
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+public class IndexProvisioner {
+
+	static final String INDEX = PostingsFetcher.INDEX;
+	static final String TYPE = PostingsFetcher.TYPE;
+
+	static final int SHARDS = Integer.getInteger("indexer.shards", 5);
+	static final int REPLICAS = Integer.getInteger("indexer.replicas", 1);
+	static final int MAX_SEGMENTS = Integer.getInteger("indexer.maxSegments", 1);
+	static final boolean RECREATE = Boolean.parseBoolean(System.getProperty("indexer.recreate", "false"));
+	static final String DEFAULT_REFRESH_INTERVAL = System.getProperty("indexer.refreshInterval", "1s");
+
+	static final String REFRESH_INTERVAL = "index.refresh_interval";
+	static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+	/*
+	 * Creates the index unless it exists. With -Dindexer.recreate=true an
+	 * existing index is deleted first.
+	 */
+	static void create(Client client) throws IOException {
+		create(client, SHARDS, REPLICAS);
+	}
+
+	static void create(Client client, int shards, int replicas) throws IOException {
+
+		IndicesAdminClient indices = client.admin().indices();
+		if (indices.prepareExists(INDEX).execute().actionGet().isExists()) {
+			if (!RECREATE) {
+				System.out.println(INDEX + " exists, keeping its mapping (-Dindexer.recreate=true to rebuild it)");
+				return;
+			}
+			System.out.println("Deleting " + INDEX);
+			indices.prepareDelete(INDEX).execute().actionGet();
+		}
+
+		Settings settings = ImmutableSettings.settingsBuilder()
+				.put("index.number_of_shards", shards)
+				.put(NUMBER_OF_REPLICAS, replicas)
+				.put("index.analysis.analyzer.text_standard.type", "standard")
+				.putArray("index.analysis.analyzer.text_standard.stopwords", "_none_")
+				.build();
+
+		indices.prepareCreate(INDEX)
+				.setSettings(settings)
+				.addMapping(TYPE, mapping())
+				.execute()
+				.actionGet();
+		client.admin().cluster().prepareHealth(INDEX).setWaitForYellowStatus().execute().actionGet();
+		System.out.println("Created " + INDEX + " with " + shards + " shards and " + replicas + " replicas");
+	}
+
+	static XContentBuilder mapping() throws IOException {
+
+		return jsonBuilder().startObject()
+				.startObject(TYPE)
+					.startObject("properties")
+						.startObject("docno")
+							.field("type", "string")
+							.field("index", "not_analyzed")
+							.field("store", true)
+						.endObject()
+						.startObject("text")
+							.field("type", "string")
+							.field("analyzer", "text_standard")
+							.field("index_options", "freqs")
+							.field("term_vector", "yes")
+							.startObject("norms").field("enabled", false).endObject()
+						.endObject()
+						.startObject("doclength")
+							.field("type", "integer")
+							.field("doc_values", true)
+						.endObject()
+					.endObject()
+				.endObject()
+			.endObject();
+	}
+
+	/*
+	 * Turns off refreshes and replicas for the load. Returns the settings to
+	 * restore afterwards. An index still left in load settings by a crashed
+	 * run (refreshes off, no replicas) gets the configured defaults back
+	 * instead.
+	 */
+	static Settings beginBulkLoad(Client client) {
+
+		Settings current = client.admin().indices().prepareGetSettings(INDEX)
+				.execute()
+				.actionGet()
+				.getIndexToSettings()
+				.get(INDEX);
+		String refreshInterval = current.get(REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+		String replicas = current.get(NUMBER_OF_REPLICAS, String.valueOf(REPLICAS));
+		if (refreshInterval.equals("-1") && replicas.equals("0")) {
+			System.out.println(INDEX + " still has the settings of an interrupted load, restoring "
+					+ DEFAULT_REFRESH_INTERVAL + " refreshes and " + REPLICAS + " replicas afterwards");
+			refreshInterval = DEFAULT_REFRESH_INTERVAL;
+			replicas = String.valueOf(REPLICAS);
+		}
+		Settings previous = ImmutableSettings.settingsBuilder()
+				.put(REFRESH_INTERVAL, refreshInterval)
+				.put(NUMBER_OF_REPLICAS, replicas)
+				.build();
+
+		client.admin().indices().prepareUpdateSettings(INDEX)
+				.setSettings(ImmutableSettings.settingsBuilder()
+						.put(REFRESH_INTERVAL, "-1")
+						.put(NUMBER_OF_REPLICAS, 0))
+				.execute()
+				.actionGet();
+		return previous;
+	}
+
+	/*
+	 * Restores the settings saved by beginBulkLoad. Called whether or not
+	 * the load succeeded.
+	 */
+	static void restoreSettings(Client client, Settings previous) {
+		client.admin().indices().prepareUpdateSettings(INDEX).setSettings(previous).execute().actionGet();
+	}
+
+	/*
+	 * Refreshes the loaded index and merges it down to MAX_SEGMENTS segments
+	 * per shard
+	 */
+	static void endBulkLoad(Client client) {
+
+		IndicesAdminClient indices = client.admin().indices();
+		indices.prepareRefresh(INDEX).execute().actionGet();
+
+		long start = System.nanoTime();
+		indices.prepareOptimize(INDEX)
+				.setMaxNumSegments(MAX_SEGMENTS)
+				.setWaitForMerge(true)
+				.execute()
+				.actionGet();
+		Metrics.record("index.optimize", start);
+		client.admin().cluster().prepareHealth(INDEX).setWaitForYellowStatus().execute().actionGet();
+	}
+}
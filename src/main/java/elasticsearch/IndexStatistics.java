@@ -0,0 +1,189 @@
+package elasticsearch;
+
+/**
+ *  IndexStatistics builds the three stats/ snapshots the query side needs
+ *  (CorpusStatistics, DocLengthStore, DocnoDictionary) from one scan/scroll
+ *  pass over the index: every page of hits carries the docnos and is
+ *  followed by one multi term vector request, frequencies only.
+ *
+ *  Collection frequencies are summed over the term vectors of all documents
+ *  and V is the exact number of distinct terms, so a rebuild gives the same
+ *  statistics as the incremental path of IndexingProgress.
+ *
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.termvector.MultiTermVectorsItemResponse;
+import org.elasticsearch.action.termvector.MultiTermVectorsRequestBuilder;
+import org.elasticsearch.action.termvector.MultiTermVectorsResponse;
+import org.elasticsearch.action.termvector.TermVectorRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+
+public class IndexStatistics {
+
+	static final int SCROLL_PAGE_SIZE = Integer.getInteger("doclength.pageSize", 500);
+
+	final CorpusStatistics corpus;
+	final DocLengthStore docLengths;
+	final DocnoDictionary dictionary;
+
+	IndexStatistics(CorpusStatistics corpus, DocLengthStore docLengths, DocnoDictionary dictionary) {
+		this.corpus = corpus;
+		this.docLengths = docLengths;
+		this.dictionary = dictionary;
+	}
+
+	/*
+	 * Loads the snapshots from stats/, rebuilding and saving all of them if
+	 * one is missing, unreadable or saved for another version of the index
+	 * (snapshots checkpointed during an indexing run never match)
+	 */
+	static IndexStatistics loadOrBuild(Client client) throws IOException {
+
+		String indexVersion = CorpusStatistics.indexVersion(client);
+		if (ESQueryProcessor.CORPUS_FILE.exists() && ESQueryProcessor.DOC_LENGTH_FILE.exists()
+				&& ESQueryProcessor.DOCNO_FILE.exists()) {
+			try {
+				IndexStatistics statistics = load();
+				if (statistics.matches(indexVersion)) {
+					return statistics;
+				}
+				System.out.println("Statistics snapshots are stale, rebuilding them");
+			} catch (IOException e) {
+				System.out.println("Cannot read the statistics snapshots (" + e.getMessage() + "), rebuilding them");
+			}
+		}
+		IndexStatistics statistics = build(client, indexVersion);
+		statistics.save();
+		return statistics;
+	}
+
+	static IndexStatistics load() throws IOException {
+		return new IndexStatistics(CorpusStatistics.load(ESQueryProcessor.CORPUS_FILE),
+				DocLengthStore.load(ESQueryProcessor.DOC_LENGTH_FILE), DocnoDictionary.load(ESQueryProcessor.DOCNO_FILE));
+	}
+
+	/*
+	 * Whether all three snapshots were saved for the given index version
+	 */
+	boolean matches(String indexVersion) {
+		return corpus.getIndexVersion().equals(indexVersion) && docLengths.getIndexVersion().equals(indexVersion)
+				&& dictionary.getIndexVersion().equals(indexVersion);
+	}
+
+	static IndexStatistics build(Client client) throws IOException {
+		return build(client, CorpusStatistics.indexVersion(client));
+	}
+
+	/*
+	 * Computes every snapshot with one scan/scroll pass over the index
+	 */
+	static IndexStatistics build(Client client, String indexVersion) throws IOException {
+
+		long start = System.nanoTime();
+		int[] lengths = new int[1024];
+		String[] docnos = new String[1024];
+		int maxDocId = -1;
+		CorpusStatistics.Delta documents = new CorpusStatistics.Delta();
+
+		SearchResponse scrollResponse = client.prepareSearch(PostingsFetcher.INDEX)
+				.setTypes(PostingsFetcher.TYPE)
+				.setSearchType(SearchType.SCAN)
+				.setScroll(TimeValue.timeValueMinutes(1))
+				.setQuery(QueryBuilders.matchAllQuery())
+				.setFetchSource(false)
+				.addField("docno")
+				.setSize(SCROLL_PAGE_SIZE)
+				.execute()
+				.actionGet();
+
+		while (true) {
+			scrollResponse = client.prepareSearchScroll(scrollResponse.getScrollId())
+					.setScroll(TimeValue.timeValueMinutes(1))
+					.execute()
+					.actionGet();
+			SearchHit[] hits = scrollResponse.getHits().getHits();
+			if (hits.length == 0) {
+				break;
+			}
+
+			MultiTermVectorsRequestBuilder termVectors = client.prepareMultiTermVectors();
+			for (SearchHit hit : hits) {
+				int docId = Integer.parseInt(hit.getId());
+				if (docId >= docnos.length) {
+					int size = Math.max(docId + 1, docnos.length * 2);
+					docnos = Arrays.copyOf(docnos, size);
+					lengths = Arrays.copyOf(lengths, size);
+				}
+				docnos[docId] = hit.field("docno").getValue().toString();
+				maxDocId = Math.max(maxDocId, docId);
+				termVectors.add(new TermVectorRequest(PostingsFetcher.INDEX, PostingsFetcher.TYPE, hit.getId())
+						.selectedFields(new String[] {PostingsFetcher.FIELD})
+						.offsets(false)
+						.positions(false)
+						.payloads(false)
+						.termStatistics(false)
+						.fieldStatistics(false));
+			}
+			MultiTermVectorsResponse response = termVectors.execute().actionGet();
+
+			for (MultiTermVectorsItemResponse item : response.getResponses()) {
+				if (item.isFailed()) {
+					throw new IOException("term vector failed for " + item.getId() + ": " + item.getFailure().getMessage());
+				}
+				Map<String,Integer> termFreqs = new HashMap<String,Integer>();
+				lengths[Integer.parseInt(item.getId())] = termFreqs(item.getResponse().getFields().terms(PostingsFetcher.FIELD), termFreqs);
+				documents.add(termFreqs);
+			}
+		}
+
+		CorpusStatistics corpus = CorpusStatistics.empty().plus(documents, indexVersion);
+		Metrics.record("index.statsBuild", start);
+		return new IndexStatistics(corpus, new DocLengthStore(indexVersion, Arrays.copyOf(lengths, maxDocId + 1)),
+				new DocnoDictionary(indexVersion, Arrays.copyOf(docnos, maxDocId + 1)));
+	}
+
+	/*
+	 * Puts the frequency of every term of a term vector into termFreqs and
+	 * returns their sum, the length of the document
+	 */
+	private static int termFreqs(Terms vector, Map<String,Integer> termFreqs) throws IOException {
+
+		if (vector == null)
+			return 0;
+		int length = 0;
+		TermsEnum termsEnum = vector.iterator(null);
+		DocsEnum docsEnum = null;
+		BytesRef text;
+		while ((text = termsEnum.next()) != null) {
+			docsEnum = termsEnum.docs(null, docsEnum);
+			int tf = docsEnum.freq();
+			termFreqs.put(text.utf8ToString(), tf);
+			length += tf;
+		}
+		return length;
+	}
+
+	/*
+	 * Writes the snapshots to the stats/ files read by ESQueryProcessor,
+	 * the corpus statistics last
+	 */
+	void save() throws IOException {
+		docLengths.save(ESQueryProcessor.DOC_LENGTH_FILE);
+		dictionary.save(ESQueryProcessor.DOCNO_FILE);
+		corpus.save(ESQueryProcessor.CORPUS_FILE);
+	}
+}
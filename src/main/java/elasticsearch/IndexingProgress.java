@@ -0,0 +1,245 @@
+package elasticsearch;
+
+/**
+ *  IndexingProgress tracks an incremental ESIndexer run: which documents
+ *  Elasticsearch has acknowledged, the statistics of the new documents, and
+ *  periodic checkpoints of the manifest and the stats/ snapshots.
+ *  
+ *  The snapshots of the previous run (corpus statistics, document lengths,
+ *  docnos) are the base. Acknowledged documents are added to them, so a run
+ *  only pays for the data it indexes. When a file changed since it was
+ *  indexed its old documents cannot be subtracted, so the snapshots are
+ *  rebuilt from the index at the end instead.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+
+public class IndexingProgress implements ESBulkIndexer.AckListener, TrecCollectionParser.FileListener {
+
+	static final int CHECKPOINT_DOCS = Integer.getInteger("indexer.checkpointDocs", 10000);
+
+	final IndexManifest manifest;
+	private final CorpusStatistics baseCorpus;
+	private final DocLengthStore baseLengths;
+	private final DocnoDictionary baseDocnos;
+	private boolean rebuildStatistics;
+
+	private final CorpusStatistics.Delta delta = new CorpusStatistics.Delta();
+	private final Map<Integer,Integer> newLengths = new ConcurrentHashMap<Integer,Integer>();
+	private final Map<Integer,String> newDocnos = new ConcurrentHashMap<Integer,String>();
+
+	// Documents sent to Elasticsearch and not acknowledged yet, by id
+	private final Map<String,Pending> pending = new ConcurrentHashMap<String,Pending>();
+	// Acknowledged documents past the checkpoint of their file, by file:position
+	private final Map<String,Pending> waiting = new HashMap<String,Pending>();
+	private final AtomicLong acknowledged = new AtomicLong();
+	private long checkpointed;
+
+	IndexingProgress(IndexManifest manifest, CorpusStatistics baseCorpus, DocLengthStore baseLengths,
+			DocnoDictionary baseDocnos, boolean rebuildStatistics) {
+		this.manifest = manifest;
+		this.baseCorpus = baseCorpus;
+		this.baseLengths = baseLengths;
+		this.baseDocnos = baseDocnos;
+		this.rebuildStatistics = rebuildStatistics;
+	}
+
+	/*
+	 * Loads the manifest and the snapshots it covers. The manifest is reset
+	 * when the index was recreated; the statistics are rebuilt at the end
+	 * when the snapshots do not match the manifest. An index the manifest
+	 * does not describe must be empty: documents indexed under other ids
+	 * (e.g. the sequential ids of older runs) would be partly overwritten
+	 * and partly duplicated.
+	 */
+	static IndexingProgress open(Client client) throws IOException {
+
+		IndexManifest manifest = IndexManifest.load(IndexManifest.FILE);
+		String indexUuid = CorpusStatistics.indexUuid(client);
+		if (!indexUuid.equals(manifest.getIndexUuid())) {
+			client.admin().indices().prepareRefresh(IndexProvisioner.INDEX).execute().actionGet();
+			long documents = client.prepareCount(IndexProvisioner.INDEX)
+					.setQuery(QueryBuilders.matchAllQuery())
+					.execute()
+					.actionGet()
+					.getCount();
+			if (documents > 0) {
+				throw new IOException(IndexProvisioner.INDEX + " holds " + documents + " documents that "
+						+ IndexManifest.FILE + " does not describe; rerun with -Dindexer.recreate=true to rebuild it");
+			}
+			System.out.println("New index " + indexUuid + ", indexing every file");
+			manifest.reset(indexUuid);
+			// From now on the manifest describes the index, even if this run stops before a checkpoint
+			manifest.save(IndexManifest.FILE);
+		}
+
+		if (manifest.getStatisticsDocs() == 0) {
+			return new IndexingProgress(manifest, CorpusStatistics.empty(), new DocLengthStore(new int[0]),
+					new DocnoDictionary(new String[0]), false);
+		}
+		if (manifest.getStatisticsDocs() > 0 && ESQueryProcessor.CORPUS_FILE.exists()
+				&& ESQueryProcessor.DOC_LENGTH_FILE.exists() && ESQueryProcessor.DOCNO_FILE.exists()) {
+			try {
+				IndexStatistics statistics = IndexStatistics.load();
+				// All three come from the same checkpoint, the one the manifest records
+				if (statistics.corpus.numOfDocs == manifest.getStatisticsDocs()
+						&& statistics.matches(statistics.corpus.getIndexVersion())) {
+					return new IndexingProgress(manifest, statistics.corpus, statistics.docLengths,
+							statistics.dictionary, false);
+				}
+			} catch (IOException e) {
+				System.out.println("Cannot read the statistics snapshots: " + e.getMessage());
+			}
+		}
+		System.out.println("Statistics snapshots do not match the manifest, they will be rebuilt");
+		return new IndexingProgress(manifest, CorpusStatistics.empty(), new DocLengthStore(new int[0]),
+				new DocnoDictionary(new String[0]), true);
+	}
+
+	/*
+	 * Returns the position of the first document of the file still to be
+	 * indexed, or -1 if the file is complete
+	 */
+	int resumeFrom(File file) {
+
+		IndexManifest.FileState state = manifest.file(file);
+		if (state != null && state.matches(file)) {
+			return state.isComplete() ? -1 : state.getCheckpoint();
+		}
+		if (state != null) {
+			System.out.println(file.getName() + " changed since it was indexed, reindexing it");
+			synchronized (this) {
+				rebuildStatistics = true;
+			}
+		}
+		manifest.track(file);
+		return 0;
+	}
+
+	/*
+	 * Registers a document about to be sent, with its analyzed term
+	 * frequencies and length
+	 */
+	void sent(int docId, TrecDocument document, Map<String,Integer> termFreqs, int docLength) {
+		pending.put(String.valueOf(docId), new Pending(docId, document, termFreqs, docLength));
+	}
+
+	public void fileParsed(File file, int documents) {
+		manifest.file(file).parsed(documents);
+	}
+
+	public void indexed(String id) {
+
+		Pending document = pending.remove(id);
+		if (document == null)
+			return;
+		// A document only counts once the checkpoint of its file moves over
+		// it, otherwise a resumed run would count it twice
+		synchronized (this) {
+			String file = document.source.getName();
+			IndexManifest.FileState state = manifest.file(document.source);
+			int from = state.getCheckpoint();
+			waiting.put(file + ":" + document.position, document);
+			int to = state.acknowledge(document.position, document.docno);
+			for (int position = from; position < to; position++) {
+				Pending covered = waiting.remove(file + ":" + position);
+				delta.add(covered.termFreqs);
+				newLengths.put(covered.docId, covered.docLength);
+				newDocnos.put(covered.docId, covered.docno);
+				acknowledged.incrementAndGet();
+			}
+		}
+	}
+
+	public void failed(String id) {
+		// The checkpoint of its file stays before it, so the next run retries it
+		pending.remove(id);
+	}
+
+	/*
+	 * Saves a checkpoint when CHECKPOINT_DOCS documents were acknowledged
+	 * since the last one
+	 */
+	void maybeCheckpoint() throws IOException {
+		if (acknowledged.get() - checkpointed >= CHECKPOINT_DOCS)
+			checkpoint(null);
+	}
+
+	/*
+	 * Saves the extended snapshots, then the manifest. Every file is written
+	 * to a temporary file first, so a crash leaves the previous checkpoint.
+	 * Snapshots saved during the run (indexVersion null) get a partial
+	 * version naming their document count, so ESQueryProcessor never takes
+	 * them for the current index and a mix of two checkpoints is detected.
+	 */
+	synchronized void checkpoint(String indexVersion) throws IOException {
+
+		long start = System.nanoTime();
+		if (rebuildStatistics) {
+			manifest.setStatisticsDocs(-1);
+		} else {
+			if (indexVersion == null)
+				indexVersion = "partial:" + manifest.getIndexUuid() + ":" + ((long) baseCorpus.numOfDocs + delta.numOfDocs);
+			CorpusStatistics corpus = baseCorpus.plus(delta, indexVersion);
+			baseLengths.extend(newLengths, indexVersion).save(ESQueryProcessor.DOC_LENGTH_FILE);
+			baseDocnos.extend(newDocnos, indexVersion).save(ESQueryProcessor.DOCNO_FILE);
+			corpus.save(ESQueryProcessor.CORPUS_FILE);
+			manifest.setStatisticsDocs((long) corpus.numOfDocs);
+		}
+		manifest.save(IndexManifest.FILE);
+		checkpointed = acknowledged.get();
+		Metrics.record("index.checkpoint", start);
+		System.out.println("checkpoint: " + checkpointed + " documents acknowledged");
+	}
+
+	/*
+	 * Final checkpoint once the index is refreshed: extends the snapshots
+	 * for the current index version, or rebuilds them from the index
+	 */
+	void finish(Client client) throws IOException {
+
+		String indexVersion = CorpusStatistics.indexVersion(client);
+		boolean rebuild;
+		synchronized (this) {
+			rebuild = rebuildStatistics;
+		}
+		if (!rebuild) {
+			checkpoint(indexVersion);
+			return;
+		}
+		IndexStatistics statistics = IndexStatistics.build(client, indexVersion);
+		statistics.save();
+		synchronized (this) {
+			manifest.setStatisticsDocs((long) statistics.corpus.numOfDocs);
+			manifest.save(IndexManifest.FILE);
+		}
+	}
+
+	private static class Pending {
+
+		final int docId;
+		final File source;
+		final int position;
+		final String docno;
+		final Map<String,Integer> termFreqs;
+		final int docLength;
+
+		Pending(int docId, TrecDocument document, Map<String,Integer> termFreqs, int docLength) {
+			this.docId = docId;
+			this.source = document.getSource();
+			this.position = document.getPosition();
+			this.docno = document.getDocno();
+			this.termFreqs = termFreqs;
+			this.docLength = docLength;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package elasticsearch;
+
+/**
+ *  LuceneIndexer indexes the documents present in src/main/resources/ap89_collection
+ *  directly with a Lucene IndexWriter into an MMapDirectory, without an
+ *  Elasticsearch node. It is the indexing half of the embedded Lucene mode,
+ *  LuceneQueryProcessor is the query half.
+ *  
+ *  Each document gets the docno (stored and as sorted doc values), the text
+ *  (docs and frequencies only, no positions), and as numeric doc values the
+ *  doclength (number of tokens, like the doclength field of ap_dataset) and
+ *  the docterms (number of distinct terms, the document length of
+ *  CorpusStatistics). The text is analyzed with the same standard analyzer
+ *  without stop words as the ap_dataset text field, so both backends see the
+ *  same tokens. It is analyzed once: the tokens are counted from a cached
+ *  token stream that the IndexWriter then replays.
+ *  
+ *  The index is written to -Dlucene.indexDir (lucene_index by default) and
+ *  merged down to one segment at the end.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CachingTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.collect.Sets;
+
+public class LuceneIndexer {
+
+	static final File INDEX_DIR = new File(System.getProperty("lucene.indexDir", "lucene_index"));
+	static final int RAM_BUFFER_MB = Integer.getInteger("lucene.ramBufferMb", 256);
+
+	static final FieldType TEXT_TYPE = new FieldType();
+
+	static {
+		TEXT_TYPE.setIndexed(true);
+		TEXT_TYPE.setTokenized(true);
+		TEXT_TYPE.setStored(false);
+		TEXT_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+		TEXT_TYPE.freeze();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		File resourceLocation = new File("src/main/resources/ap89_collection");
+		File[] files = resourceLocation.listFiles();
+		Arrays.sort(files);
+
+		TrecCollectionParser parser = new TrecCollectionParser(files, ESIndexer.PARSER_THREADS, ESIndexer.QUEUE_CAPACITY);
+		parser.start();
+
+		Analyzer analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+		IndexWriterConfig config = new IndexWriterConfig(Version.LATEST, analyzer)
+				.setOpenMode(OpenMode.CREATE)
+				.setRAMBufferSizeMB(RAM_BUFFER_MB);
+		MMapDirectory directory = new MMapDirectory(INDEX_DIR);
+		IndexWriter writer = new IndexWriter(directory, config);
+
+		// One document instance is refilled for every TREC document
+		StringField docno = new StringField(LuceneSearchBackend.DOCNO_FIELD, "", Field.Store.YES);
+		SortedDocValuesField docnoValue = new SortedDocValuesField(LuceneSearchBackend.DOCNO_FIELD, new BytesRef());
+		Field text = new Field(LuceneSearchBackend.TEXT_FIELD, "", TEXT_TYPE);
+		NumericDocValuesField docLength = new NumericDocValuesField(LuceneSearchBackend.DOC_LENGTH_FIELD, 0);
+		NumericDocValuesField docTerms = new NumericDocValuesField(LuceneSearchBackend.DOC_TERMS_FIELD, 0);
+		Document luceneDocument = new Document();
+		luceneDocument.add(docno);
+		luceneDocument.add(docnoValue);
+		luceneDocument.add(text);
+		luceneDocument.add(docLength);
+		luceneDocument.add(docTerms);
+		Set<String> distinctTerms = Sets.newHashSet();
+
+		int count = 0;
+		long start = System.currentTimeMillis();
+		TrecDocument document;
+		while((document = parser.take())!=null) {
+			long addStart = System.nanoTime();
+			docno.setStringValue(document.getDocno());
+			docnoValue.setBytesValue(new BytesRef(document.getDocno()));
+
+			// Count the tokens while caching them, then replay the cache to the writer
+			TokenStream tokenStream = analyzer.tokenStream(LuceneSearchBackend.TEXT_FIELD, document.getText());
+			CachingTokenFilter tokens = new CachingTokenFilter(tokenStream);
+			CharTermAttribute termAttribute = tokens.addAttribute(CharTermAttribute.class);
+			int tokenCount = 0;
+			distinctTerms.clear();
+			tokenStream.reset();
+			while (tokens.incrementToken()) {
+				tokenCount++;
+				distinctTerms.add(termAttribute.toString());
+			}
+			tokens.reset();
+			text.setTokenStream(tokens);
+			docLength.setLongValue(tokenCount);
+			docTerms.setLongValue(distinctTerms.size());
+			writer.addDocument(luceneDocument);
+			Metrics.record("index.request", addStart);
+			Metrics.increment("index.docs", 1);
+
+			if(++count % 10000 == 0)
+				System.out.println(count + " documents indexed");
+		}
+
+		long flushStart = System.nanoTime();
+		writer.forceMerge(1);
+		writer.close();
+		Metrics.record("index.flush", flushStart);
+		directory.close();
+		analyzer.close();
+		System.out.println(count + " documents indexed into " + INDEX_DIR + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		Metrics.writeSummary("lucene-indexing");
+	}
+
+}
@@ -0,0 +1,61 @@
+package elasticsearch;
+
+/**
+ *  LuceneQueryProcessor runs the queries against the embedded Lucene index
+ *  written by LuceneIndexer, without an Elasticsearch node.
+ *  
+ *  Queries are read and cleaned exactly like ESQueryProcessor and scored by
+ *  LuceneQueryTask on a pool of -Dquery.threads workers with the models
+ *  selected by -Dquery.models. Run files go to -Dlucene.outputDir
+ *  (output/lucene by default) so they can be compared with the
+ *  Elasticsearch runs, and are evaluated by TrecEvaluator.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.common.collect.Lists;
+
+public class LuceneQueryProcessor {
+
+	static final String OUTPUT_DIR = System.getProperty("lucene.outputDir", "output/lucene");
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+
+		HashSet<String> hashUselessWords = ESUtils.createHashSetStopAndExtra();
+		File queryFile = new File("src/main/resources/query_desc.51-100.short.txt");
+
+		long start = System.nanoTime();
+		LuceneSearchBackend backend = new LuceneSearchBackend(LuceneIndexer.INDEX_DIR);
+		Metrics.record("query.statsLoad", start);
+		List<RetrievalModel> models = ESModels.forNames(ESQueryProcessor.MODELS);
+
+		ExecutorService queryPool = Executors.newFixedThreadPool(ESQueryProcessor.QUERY_THREADS);
+		List<Future<QueryResult>> results = Lists.newArrayList();
+		for(String[] query : ESQueryProcessor.readQueries(queryFile, hashUselessWords)) {
+			System.out.println(query[0]);
+			System.out.println(query[1]);
+			results.add(queryPool.submit(new LuceneQueryTask(backend, models, query[0], query[1])));
+		}
+		queryPool.shutdown();
+
+		RunWriter runWriter = new RunWriter(new File(OUTPUT_DIR));
+		List<QueryResult> done = Lists.newArrayList();
+		for(Future<QueryResult> result : results) {
+			done.add(result.get());
+			runWriter.write(done.get(done.size() - 1));
+		}
+		runWriter.close();
+		TrecEvaluator.evaluateRun("lucene-query", done);
+		Metrics.writeSummary("lucene-query");
+
+		backend.close();
+	}
+}
@@ -0,0 +1,69 @@
+package elasticsearch;
+
+/**
+ *  LuceneQueryTask scores one query against the embedded Lucene index. It
+ *  feeds the postings read by LuceneSearchBackend to the same QueryScorer and
+ *  retrieval models as QueryTask.
+ *
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+public class LuceneQueryTask implements Callable<QueryResult> {
+
+	private static final ThreadLocal<QueryScorer> SCORERS = new ThreadLocal<QueryScorer>();
+
+	private final LuceneSearchBackend backend;
+	private final List<RetrievalModel> models;
+	private final String queryNum;
+	private final String queryString;
+
+	public LuceneQueryTask(LuceneSearchBackend backend, List<RetrievalModel> models, String queryNum, String queryString) {
+		this.backend = backend;
+		this.models = models;
+		this.queryNum = queryNum;
+		this.queryString = queryString;
+	}
+
+	public QueryResult call() throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			return score();
+		} finally {
+			Metrics.record("query.total", start);
+		}
+	}
+
+	private QueryResult score() throws IOException {
+
+		QueryScorer scorer = SCORERS.get();
+		if (scorer == null || scorer.models != models) {
+			scorer = new QueryScorer(models, backend.maxDocId(), backend, backend, QueryTask.MAX_RANK);
+			SCORERS.set(scorer);
+		}
+		scorer.reset();
+
+		HashMap<String,Double> termFreqQueryMap = ESUtils.termFreqInQuery(queryString);
+		QueryScorer.checkQueryTerms(queryNum, termFreqQueryMap.size());
+		String[] terms = termFreqQueryMap.keySet().toArray(new String[termFreqQueryMap.size()]);
+		TermStats[] queryTerms = new TermStats[terms.length];
+
+		for(int termIndex = 0; termIndex < terms.length; termIndex++) {
+
+			String term = terms[termIndex];
+			long start = System.nanoTime();
+			Postings postings = backend.postings(term);
+			Metrics.record("query.postings", start);
+			queryTerms[termIndex] = new TermStats(term, termFreqQueryMap.get(term), postings.getDocFreq(),
+					postings.getCollectionFreq(), backend.corpus);
+			if(postings.size() > 0)
+				scorer.score(queryTerms[termIndex], termIndex, postings);
+		}
+
+		return scorer.finish(queryNum, queryTerms);
+	}
+}
@@ -0,0 +1,167 @@
+package elasticsearch;
+
+/**
+ *  LuceneSearchBackend reads postings, document lengths, docnos and corpus
+ *  statistics straight from the Lucene index written by LuceneIndexer.
+ *  
+ *  Document lengths and docnos are loaded from doc values once when the
+ *  backend is opened. The corpus statistics are derived like those of
+ *  CorpusStatistics: the collection length and average document length sum
+ *  the distinct terms of every document (the docterms doc values), while
+ *  docLength() is the token count, as in DocLengthStore. Ids are Lucene doc ids; the index is a single segment
+ *  after LuceneIndexer, and multi-segment indexes are read through a
+ *  composite view with global doc ids.
+ *  
+ *  Instances are safe to share between query threads.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+
+public class LuceneSearchBackend implements DocLengthSource, TopK.DocnoLookup, Closeable {
+
+	static final String DOCNO_FIELD = "docno";
+	static final String TEXT_FIELD = "text";
+	static final String DOC_LENGTH_FIELD = "doclength";
+	static final String DOC_TERMS_FIELD = "docterms";
+
+	private final MMapDirectory directory;
+	private final DirectoryReader reader;
+	private final AtomicReader atomicReader;
+	private final Analyzer analyzer;
+
+	private final int[] docLengths;
+	private final String[] docnos;
+	final CorpusStatistics corpus;
+
+	public LuceneSearchBackend(File indexDir) throws IOException {
+
+		directory = new MMapDirectory(indexDir);
+		reader = DirectoryReader.open(directory);
+		atomicReader = SlowCompositeReaderWrapper.wrap(reader);
+		analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+
+		int maxDoc = atomicReader.maxDoc();
+		docLengths = new int[maxDoc];
+		docnos = new String[maxDoc];
+		NumericDocValues lengthValues = atomicReader.getNumericDocValues(DOC_LENGTH_FIELD);
+		NumericDocValues termValues = atomicReader.getNumericDocValues(DOC_TERMS_FIELD);
+		SortedDocValues docnoValues = atomicReader.getSortedDocValues(DOCNO_FIELD);
+		if (lengthValues == null || termValues == null || docnoValues == null) {
+			throw new IOException(indexDir + " was not written by LuceneIndexer, or by an older version of it");
+		}
+		Bits liveDocs = atomicReader.getLiveDocs();
+		double docLengthC = 0;
+		for (int docId = 0; docId < maxDoc; docId++) {
+			if (liveDocs != null && !liveDocs.get(docId))
+				continue;
+			docLengths[docId] = (int) lengthValues.get(docId);
+			docnos[docId] = docnoValues.get(docId).utf8ToString();
+			docLengthC += termValues.get(docId);
+		}
+
+		double numOfDocs = atomicReader.numDocs();
+		corpus = new CorpusStatistics(numOfDocs, docLengthC / numOfDocs, docLengthC, vocabSize());
+	}
+
+	/*
+	 * Number of distinct terms of the text field
+	 */
+	private double vocabSize() throws IOException {
+
+		Terms terms = atomicReader.terms(TEXT_FIELD);
+		if (terms == null)
+			return 0;
+		long size = terms.size();
+		if (size >= 0)
+			return size;
+		size = 0;
+		TermsEnum termsEnum = terms.iterator(null);
+		while (termsEnum.next() != null) {
+			size++;
+		}
+		return size;
+	}
+
+	public double docLength(int docId) {
+		return docLengths[docId];
+	}
+
+	public String docno(int docId) {
+		return docnos[docId];
+	}
+
+	public int maxDocId() {
+		return docLengths.length - 1;
+	}
+
+	/*
+	 * Analyzes a query term into its indexed form, or returns null if the
+	 * analyzer drops it
+	 */
+	String analyze(String term) throws IOException {
+
+		TokenStream tokenStream = analyzer.tokenStream(TEXT_FIELD, term);
+		try {
+			CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			String token = tokenStream.incrementToken() ? termAttribute.toString() : null;
+			tokenStream.end();
+			return token;
+		} finally {
+			tokenStream.close();
+		}
+	}
+
+	/*
+	 * Reads all postings of a query term with their frequencies. Document and
+	 * collection frequency come from the term dictionary.
+	 */
+	Postings postings(String term) throws IOException {
+
+		String token = analyze(term);
+		if (token == null)
+			return new Postings(term, 0);
+
+		Term indexTerm = new Term(TEXT_FIELD, token);
+		int docFreq = atomicReader.docFreq(indexTerm);
+		Postings postings = new Postings(term, docFreq);
+		if (docFreq == 0)
+			return postings;
+
+		DocsEnum docsEnum = atomicReader.termDocsEnum(indexTerm);
+		int docId;
+		while ((docId = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+			postings.add(docId, docnos[docId], docsEnum.freq());
+		}
+		postings.docFreq = docFreq;
+		postings.collectionFreq = atomicReader.totalTermFreq(indexTerm);
+		return postings;
+	}
+
+	public void close() throws IOException {
+		analyzer.close();
+		reader.close();
+		directory.close();
+	}
+}
@@ -0,0 +1,292 @@
+package elasticsearch;
+
+/**
+ *  Metrics records per phase latency histograms, value distributions and
+ *  counters for indexing and query runs, and writes them as a JSON summary
+ *  at the end of the run.
+ *  
+ *  Phases are timed with 
+ *  	long start = System.nanoTime(); ... Metrics.record("query.search", start);
+ *  Elasticsearch requests issued by a query thread are counted with
+ *  roundTrip(); beginQuery()/endQuery() turn the counts of one query into
+ *  the query.roundTrips and query.bytesReceived distributions and return
+ *  them, together with the postings cache hits and misses of the query.
+ *  Scopes nest, so a caller can wrap a task that opens its own scope.
+ *  
+ *  Received bytes are the serialized size of each response, which costs a
+ *  serialization pass, so they are only measured with
+ *  -Dmetrics.responseBytes=true. -Dmetrics.enabled=false turns recording off.
+ *  The summary goes to output/metrics-<run>.json unless -Dmetrics.file is set.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.json.JSONObject;
+
+public class Metrics {
+
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("metrics.enabled", "true"));
+	static final boolean RESPONSE_BYTES = Boolean.parseBoolean(System.getProperty("metrics.responseBytes", "false"));
+	static final String FILE = System.getProperty("metrics.file");
+
+	private static final long START = System.nanoTime();
+	private static final ConcurrentHashMap<String,Histogram> timers = new ConcurrentHashMap<String,Histogram>();
+	private static final ConcurrentHashMap<String,Histogram> distributions = new ConcurrentHashMap<String,Histogram>();
+	private static final ConcurrentHashMap<String,AtomicLong> counters = new ConcurrentHashMap<String,AtomicLong>();
+
+	// Slots of the per query counts returned by endQuery()
+	static final int ROUND_TRIPS = 0;
+	static final int BYTES_RECEIVED = 1;
+	static final int CACHE_HITS = 2;
+	static final int CACHE_MISSES = 3;
+	private static final int DEPTH = 4;
+
+	// Counts and scope depth of the query running on this thread
+	private static final ThreadLocal<long[]> currentQuery = new ThreadLocal<long[]>();
+
+	/*
+	 * Records the time elapsed since startNanos under the given phase
+	 */
+	static void record(String phase, long startNanos) {
+		if (ENABLED)
+			histogram(timers, phase).add(System.nanoTime() - startNanos);
+	}
+
+	/*
+	 * Records one value of a distribution that is not a duration
+	 */
+	static void recordValue(String name, long value) {
+		if (ENABLED)
+			histogram(distributions, name).add(value);
+	}
+
+	static void increment(String counter, long delta) {
+
+		if (!ENABLED)
+			return;
+		AtomicLong value = counters.get(counter);
+		if (value == null) {
+			counters.putIfAbsent(counter, new AtomicLong());
+			value = counters.get(counter);
+		}
+		value.addAndGet(delta);
+	}
+
+	/*
+	 * Counts an Elasticsearch request of the given kind (search, count,
+	 * scroll, termVectors, ...)
+	 */
+	static void roundTrip(String kind) {
+
+		increment("es.roundTrips", 1);
+		increment("es.roundTrips." + kind, 1);
+		long[] query = currentQuery.get();
+		if (query != null)
+			query[ROUND_TRIPS]++;
+	}
+
+	/*
+	 * Counts a postings cache lookup
+	 */
+	static void cacheLookup(boolean hit) {
+
+		increment(hit ? "query.cache.hits" : "query.cache.misses", 1);
+		long[] query = currentQuery.get();
+		if (query != null)
+			query[hit ? CACHE_HITS : CACHE_MISSES]++;
+	}
+
+	/*
+	 * Adds the serialized size of a response to the received bytes, when
+	 * enabled
+	 */
+	static void received(ActionResponse response) {
+
+		if (!ENABLED || !RESPONSE_BYTES || response == null)
+			return;
+		try {
+			BytesStreamOutput out = new BytesStreamOutput();
+			response.writeTo(out);
+			increment("es.bytesReceived", out.size());
+			long[] query = currentQuery.get();
+			if (query != null)
+				query[BYTES_RECEIVED] += out.size();
+		} catch (IOException e) {
+			// In memory stream, cannot happen
+		}
+	}
+
+	static void beginQuery() {
+
+		long[] query = currentQuery.get();
+		if (query == null) {
+			query = new long[DEPTH + 1];
+			currentQuery.set(query);
+		}
+		query[DEPTH]++;
+	}
+
+	/*
+	 * Closes a query scope. Returns the counts of the query when the
+	 * outermost scope ends, null otherwise.
+	 */
+	static long[] endQuery() {
+
+		long[] query = currentQuery.get();
+		if (query == null || --query[DEPTH] > 0)
+			return null;
+		currentQuery.remove();
+		recordValue("query.roundTrips", query[ROUND_TRIPS]);
+		if (RESPONSE_BYTES)
+			recordValue("query.bytesReceived", query[BYTES_RECEIVED]);
+		return query;
+	}
+
+	private static Histogram histogram(ConcurrentHashMap<String,Histogram> histograms, String name) {
+
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/*
+	 * Summary of everything recorded so far. Timers are reported in
+	 * milliseconds, distributions in their own unit.
+	 */
+	static JSONObject summary(String run) {
+
+		JSONObject summary = new JSONObject();
+		summary.put("run", run);
+		summary.put("wallMs", (System.nanoTime() - START) / 1e6);
+
+		JSONObject timerSummary = new JSONObject();
+		for (Map.Entry<String,Histogram> timer : new TreeMap<String,Histogram>(timers).entrySet()) {
+			timerSummary.put(timer.getKey(), timer.getValue().toJson(1e-6));
+		}
+		summary.put("timers", timerSummary);
+
+		JSONObject distributionSummary = new JSONObject();
+		for (Map.Entry<String,Histogram> distribution : new TreeMap<String,Histogram>(distributions).entrySet()) {
+			distributionSummary.put(distribution.getKey(), distribution.getValue().toJson(1));
+		}
+		summary.put("distributions", distributionSummary);
+
+		JSONObject counterSummary = new JSONObject();
+		for (Map.Entry<String,AtomicLong> counter : new TreeMap<String,AtomicLong>(counters).entrySet()) {
+			counterSummary.put(counter.getKey(), counter.getValue().get());
+		}
+		summary.put("counters", counterSummary);
+		return summary;
+	}
+
+	/*
+	 * Writes the summary to -Dmetrics.file or output/metrics-<run>.json
+	 */
+	static void writeSummary(String run) throws IOException {
+
+		if (!ENABLED)
+			return;
+		File file = new File(FILE != null ? FILE : "output/metrics-" + run + ".json");
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(summary(run).toString(2));
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+		System.out.println("metrics written to " + file);
+	}
+
+	/*
+	 * Lock free histogram of non-negative values. Each power of two is split
+	 * into SUB_BUCKETS linear buckets, so percentiles are within 1/SUB_BUCKETS
+	 * of the recorded value.
+	 */
+	static class Histogram {
+
+		static final int SUB_BUCKET_BITS = 3;
+		static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void add(long value) {
+
+			value = Math.max(0, value);
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current;
+			while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+				// retry
+			}
+		}
+
+		static int bucket(long value) {
+
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			int subBucket = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+			return (exponent + 1) * SUB_BUCKETS + subBucket;
+		}
+
+		/*
+		 * Largest value falling into the given bucket
+		 */
+		static long upperBound(int bucket) {
+
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			int exponent = bucket / SUB_BUCKETS - 1;
+			long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent;
+			return base + (1L << exponent) - 1;
+		}
+
+		long percentile(double percentile) {
+
+			long total = count.get();
+			long rank = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int bucket = 0; bucket < buckets.length(); bucket++) {
+				seen += buckets.get(bucket);
+				if (seen >= rank && seen > 0)
+					return Math.min(upperBound(bucket), max.get());
+			}
+			return max.get();
+		}
+
+		JSONObject toJson(double scale) {
+
+			long total = count.get();
+			JSONObject json = new JSONObject();
+			json.put("count", total);
+			json.put("total", sum.get() * scale);
+			json.put("mean", total == 0 ? 0 : sum.get() * scale / total);
+			json.put("p50", percentile(0.5) * scale);
+			json.put("p90", percentile(0.9) * scale);
+			json.put("p99", percentile(0.99) * scale);
+			json.put("max", max.get() * scale);
+			return json;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package elasticsearch;
+
+/**
+ *  Postings of one term: parallel arrays of document id, docno and term
+ *  frequency, plus the document and collection frequency of the term.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.Arrays;
+
+public class Postings {
+
+	final String term;
+	long docFreq;
+	long collectionFreq;
+
+	int size;
+	int[] docIds;
+	String[] docnos;
+	int[] tfs;
+
+	public Postings(String term, int capacity) {
+		this.term = term;
+		this.docIds = new int[Math.max(capacity, 16)];
+		this.docnos = new String[docIds.length];
+		this.tfs = new int[docIds.length];
+	}
+
+	void add(int docId, String docno, int tf) {
+
+		if (size == docIds.length) {
+			int capacity = size * 2;
+			docIds = Arrays.copyOf(docIds, capacity);
+			docnos = Arrays.copyOf(docnos, capacity);
+			tfs = Arrays.copyOf(tfs, capacity);
+		}
+		docIds[size] = docId;
+		docnos[size] = docno;
+		tfs[size] = tf;
+		size++;
+		collectionFreq += tf;
+	}
+
+	/*
+	 * Appends a page of the same term, taking over its document and
+	 * collection frequency
+	 */
+	void addAll(Postings page) {
+
+		for (int i = 0; i < page.size; i++) {
+			add(page.docIds[i], page.docnos[i], page.tfs[i]);
+		}
+		docFreq = page.docFreq;
+		collectionFreq = page.collectionFreq;
+	}
+
+	/*
+	 * Empties the arrays so the instance can hold the next scroll page
+	 */
+	void clear() {
+		Arrays.fill(docnos, 0, size, null);
+		size = 0;
+	}
+
+	public String getTerm() {
+		return term;
+	}
+
+	public long getDocFreq() {
+		return docFreq;
+	}
+
+	public long getCollectionFreq() {
+		return collectionFreq;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int docId(int i) {
+		return docIds[i];
+	}
+
+	public String docno(int i) {
+		return docnos[i];
+	}
+
+	public int tf(int i) {
+		return tfs[i];
+	}
+}
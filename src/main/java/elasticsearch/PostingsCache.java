@@ -0,0 +1,267 @@
+package elasticsearch;
+
+/**
+ *  PostingsCache keeps the postings of query terms on disk, so reruns
+ *  against an unchanged index do not fetch them from Elasticsearch again.
+ *  
+ *  Entries are keyed by query term and live in a directory per index
+ *  version (see CorpusStatistics.indexVersion()); directories of other
+ *  versions are deleted when the cache is opened. Each entry is one file
+ *  holding the document and collection frequency followed by the doc ids as
+ *  variable length deltas and the term frequencies as variable length ints.
+ *  Files are memory-mapped to read them. Docnos are not stored; they come
+ *  from the DocnoDictionary, and postings with documents missing from the
+ *  dictionary are not cached.
+ *  
+ *  When the files exceed the size cap the least recently used entries are
+ *  deleted. Recency survives restarts through the file modification time.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PostingsCache {
+
+	static final int MAGIC = 0x50434143; // "PCAC"
+	static final int VERSION = 1;
+
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("query.cache", "true"));
+	static final File DIR = new File(System.getProperty("query.cacheDir", "stats/postings-cache"));
+	static final long MAX_BYTES = Long.getLong("query.cacheMb", 512) << 20;
+
+	private final File versionDir;
+	private final long maxBytes;
+	private final DocnoDictionary dictionary;
+
+	// File size per cached term, least recently used first
+	private final LinkedHashMap<String,Long> entries = new LinkedHashMap<String,Long>(256, 0.75f, true);
+	private long totalBytes;
+
+	PostingsCache(File versionDir, long maxBytes, DocnoDictionary dictionary) {
+		this.versionDir = versionDir;
+		this.maxBytes = maxBytes;
+		this.dictionary = dictionary;
+	}
+
+	/*
+	 * Opens the cache of the given index version under dir, dropping the
+	 * entries of every other version
+	 */
+	static PostingsCache open(File dir, String indexVersion, long maxBytes, DocnoDictionary dictionary) throws IOException {
+
+		String versionName = hex(indexVersion);
+		File[] versions = dir.listFiles();
+		if (versions != null) {
+			for (File version : versions) {
+				if (!version.getName().equals(versionName))
+					delete(version);
+			}
+		}
+		File versionDir = new File(dir, versionName);
+		if (!versionDir.isDirectory() && !versionDir.mkdirs()) {
+			throw new IOException("Cannot create postings cache directory " + versionDir);
+		}
+
+		PostingsCache cache = new PostingsCache(versionDir, maxBytes, dictionary);
+		File[] files = versionDir.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(".post")) {
+				cache.entries.put(file.getName(), file.length());
+				cache.totalBytes += file.length();
+			} else {
+				// Left over from an interrupted put
+				file.delete();
+			}
+		}
+		cache.evict();
+		return cache;
+	}
+
+	/*
+	 * Returns the cached postings of the query term, or null on a miss
+	 */
+	public Postings get(String term) throws IOException {
+
+		String name = fileName(term);
+		synchronized (this) {
+			if (entries.get(name) == null) {
+				Metrics.cacheLookup(false);
+				return null;
+			}
+		}
+		File file = new File(versionDir, name);
+		Postings postings;
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (IOException e) {
+			// Evicted by another thread in the meantime
+			Metrics.cacheLookup(false);
+			return null;
+		}
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException(file + " is not a postings cache entry of version " + VERSION);
+			}
+			long docFreq = buffer.getLong();
+			long collectionFreq = buffer.getLong();
+			int size = buffer.getInt();
+			int[] docIds = new int[size];
+			int docId = 0;
+			for (int i = 0; i < size; i++) {
+				docId += readVInt(buffer);
+				docIds[i] = docId;
+			}
+			postings = new Postings(term, size);
+			for (int i = 0; i < size; i++) {
+				postings.add(docIds[i], dictionary.docno(docIds[i]), readVInt(buffer));
+			}
+			postings.docFreq = docFreq;
+			postings.collectionFreq = collectionFreq;
+		} finally {
+			raf.close();
+		}
+		file.setLastModified(System.currentTimeMillis());
+		Metrics.cacheLookup(true);
+		return postings;
+	}
+
+	/*
+	 * Stores the complete postings of a query term
+	 */
+	public void put(Postings postings) throws IOException {
+
+		for (int i = 0; i < postings.size(); i++) {
+			if (dictionary.docno(postings.docId(i)) == null)
+				return;
+		}
+
+		// Postings arrive in score order, the deltas need doc id order
+		int size = postings.size();
+		long[] sorted = new long[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = ((long) postings.docId(i) << 32) | postings.tf(i);
+		}
+		Arrays.sort(sorted);
+
+		String name = fileName(postings.getTerm());
+		File tmp = File.createTempFile("entry", ".tmp", versionDir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(postings.getDocFreq());
+			out.writeLong(postings.getCollectionFreq());
+			out.writeInt(size);
+			int previous = 0;
+			for (long entry : sorted) {
+				int docId = (int) (entry >>> 32);
+				writeVInt(out, docId - previous);
+				previous = docId;
+			}
+			for (long entry : sorted) {
+				writeVInt(out, (int) entry);
+			}
+		} finally {
+			out.close();
+		}
+
+		File file = new File(versionDir, name);
+		synchronized (this) {
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Cannot move " + tmp + " to " + file);
+			}
+			Long previous = entries.put(name, file.length());
+			totalBytes += file.length() - (previous == null ? 0 : previous);
+			evict();
+		}
+		Metrics.increment("query.cache.bytesWritten", file.length());
+	}
+
+	/*
+	 * Deletes least recently used entries until the cache fits its cap
+	 */
+	private synchronized void evict() {
+
+		Iterator<Map.Entry<String,Long>> eldest = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<String,Long> entry = eldest.next();
+			new File(versionDir, entry.getKey()).delete();
+			totalBytes -= entry.getValue();
+			eldest.remove();
+			Metrics.increment("query.cache.evictions", 1);
+		}
+	}
+
+	public synchronized long sizeInBytes() {
+		return totalBytes;
+	}
+
+	private static String fileName(String term) {
+		return hex(term) + ".post";
+	}
+
+	private static String hex(String value) {
+
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : value.getBytes("UTF-8")) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeVInt(DataOutputStream out, int value) throws IOException {
+
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVInt(MappedByteBuffer buffer) {
+
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,678 @@
+package elasticsearch;
+
+/**
+ *  PostingsFetcher retrieves the (docId, docno, tf) postings of a query term
+ *  from the ap_dataset index.
+ *
+ *  The term frequency is returned by a script field reading
+ *  _index['text'][term].tf(), so no explanation trees are built on the
+ *  server and nothing has to be parsed out of strings on the client.
+ *
+ *  @author Amod Samant
+ */
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse;
+import org.elasticsearch.action.search.ClearScrollRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+public class PostingsFetcher {
+
+	static final String INDEX = "ap_dataset";
+	static final String TYPE = "document";
+	static final String FIELD = "text";
+	static final String TF_SCRIPT = "_index[field][term].tf()";
+	static final String TTF_SCRIPT = "_index[field][term].ttf()";
+	static final boolean SCROLL = Boolean.parseBoolean(System.getProperty("query.scroll", "true"));
+	static final int PAGE_SIZE = Integer.getInteger("query.pageSize", 1000);
+	static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+	static final boolean MULTI_SEARCH = Boolean.parseBoolean(System.getProperty("query.multiSearch", "true"));
+	static final int BATCH_MAX_HITS = Integer.getInteger("query.batchMaxHits", 10000);
+	static final int MAX_BATCH_SIZE = Integer.getInteger("query.maxBatchSize", 32);
+	static final int MAX_OUTSTANDING = Integer.getInteger("query.maxOutstanding", 8);
+
+	private final Client client;
+	private final CorpusStatistics corpus;
+	private final Map<String,String> analyzedTerms = new ConcurrentHashMap<String,String>();
+	// Number of primary shards of the index, 0 until read
+	private volatile int shards;
+
+	public PostingsFetcher(Client client, CorpusStatistics corpus) {
+		this.client = client;
+		this.corpus = corpus;
+	}
+
+	/*
+	 * Opens a cursor over the postings of the given query term
+	 */
+	public Scroll open(String term) {
+		return new Scroll(term, SCROLL ? PAGE_SIZE : 0);
+	}
+
+	/*
+	 * Returns the postings of the given query term. The term is run through
+	 * the analyzer of the text field first, so _index sees the indexed form.
+	 */
+	public Postings fetch(String term) {
+
+		String token = analyze(term);
+		if (token.isEmpty()) {
+			return new Postings(term, 0);
+		}
+
+		long start = System.nanoTime();
+		Metrics.roundTrip("count");
+		long docFreq = client.prepareCount(INDEX)
+				.setQuery(termQuery(FIELD, token))
+				.execute()
+				.actionGet()
+				.getCount();
+		Metrics.record("query.count", start);
+
+		Postings postings = new Postings(term, (int) docFreq);
+		postings.docFreq = docFreq;
+		if (docFreq == 0) {
+			return postings;
+		}
+
+		start = System.nanoTime();
+		Metrics.roundTrip("search");
+		SearchResponse response = client.prepareSearch(INDEX)
+				.setTypes(TYPE)
+				.setQuery(termQuery(FIELD, token))
+				.setFrom(0).setSize((int) docFreq)
+				.setFetchSource(false)
+				.addField("docno")
+				.addScriptField("tf", TF_SCRIPT, scriptParams(token))
+				.execute()
+				.actionGet();
+		Metrics.received(response);
+		Metrics.record("query.search", start);
+
+		for (SearchHit hit : response.getHits().getHits()) {
+			add(postings, hit);
+		}
+		return postings;
+	}
+
+	/*
+	 * Fetches the postings of all given terms with batched multi-search
+	 * requests. The entry of a term whose hits exceed BATCH_MAX_HITS is null;
+	 * stream those with open().
+	 */
+	public Postings[] fetchAll(String[] terms) {
+
+		Postings[] postings = new Postings[terms.length];
+		String[] tokens = tokens(terms);
+		long[] docFreqs = docFreqs(tokens);
+
+		List<SearchRequestBuilder> searches = Lists.newArrayList();
+		List<Integer> searchTerms = Lists.newArrayList();
+		for (int t = 0; t < terms.length; t++) {
+			if (docFreqs[t] > BATCH_MAX_HITS) {
+				continue;
+			}
+			postings[t] = new Postings(terms[t], (int) docFreqs[t]);
+			postings[t].docFreq = docFreqs[t];
+			if (docFreqs[t] == 0) {
+				continue;
+			}
+			searches.add(client.prepareSearch(INDEX)
+					.setTypes(TYPE)
+					.setQuery(termQuery(FIELD, tokens[t]))
+					.setFrom(0).setSize((int) docFreqs[t])
+					.setFetchSource(false)
+					.addField("docno")
+					.addScriptField("tf", TF_SCRIPT, scriptParams(tokens[t])));
+			searchTerms.add(t);
+		}
+
+		long start = System.nanoTime();
+		List<SearchResponse> searchResponses = multiSearch(searches);
+		Metrics.record("query.search", start);
+		for (int i = 0; i < searchResponses.size(); i++) {
+			Postings termPostings = postings[searchTerms.get(i)];
+			for (SearchHit hit : searchResponses.get(i).getHits().getHits()) {
+				add(termPostings, hit);
+			}
+		}
+		return postings;
+	}
+
+	/*
+	 * Returns the analyzed token of every term (empty for dropped terms)
+	 */
+	String[] tokens(String[] terms) {
+
+		analyzeAll(terms);
+		String[] tokens = new String[terms.length];
+		for (int t = 0; t < terms.length; t++) {
+			tokens[t] = analyze(terms[t]);
+		}
+		return tokens;
+	}
+
+	/*
+	 * Returns the document frequency of every token with one batched round
+	 * trip of count searches. Empty tokens get 0.
+	 */
+	long[] docFreqs(String[] tokens) {
+
+		long[] docFreqs = new long[tokens.length];
+		List<SearchRequestBuilder> counts = Lists.newArrayList();
+		List<Integer> countTokens = Lists.newArrayList();
+		for (int t = 0; t < tokens.length; t++) {
+			if (tokens[t].isEmpty())
+				continue;
+			counts.add(client.prepareSearch(INDEX)
+					.setTypes(TYPE)
+					.setSearchType(SearchType.COUNT)
+					.setQuery(termQuery(FIELD, tokens[t])));
+			countTokens.add(t);
+		}
+		long start = System.nanoTime();
+		List<SearchResponse> countResponses = multiSearch(counts);
+		Metrics.record("query.count", start);
+		for (int i = 0; i < countResponses.size(); i++) {
+			docFreqs[countTokens.get(i)] = countResponses.get(i).getHits().getTotalHits();
+		}
+		return docFreqs;
+	}
+
+	/*
+	 * Runs the searches as multi-search requests of at most MAX_BATCH_SIZE
+	 * searches each. All requests are dispatched before waiting on any of them.
+	 */
+	List<SearchResponse> multiSearch(List<SearchRequestBuilder> searches) {
+
+		int batches = (searches.size() + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+		AsyncBatch<MultiSearchResponse> batch = new AsyncBatch<MultiSearchResponse>(batches);
+		for (int b = 0; b < batches; b++) {
+			MultiSearchRequestBuilder multiSearch = client.prepareMultiSearch();
+			for (int i = b * MAX_BATCH_SIZE; i < Math.min(searches.size(), (b + 1) * MAX_BATCH_SIZE); i++) {
+				multiSearch.add(searches.get(i));
+			}
+			Metrics.roundTrip("multiSearch");
+			multiSearch.execute(batch.slot(b));
+		}
+
+		List<SearchResponse> responses = Lists.newArrayListWithCapacity(searches.size());
+		for (MultiSearchResponse multiSearchResponse : batch.await()) {
+			Metrics.received(multiSearchResponse);
+			for (MultiSearchResponse.Item item : multiSearchResponse.getResponses()) {
+				if (item.isFailure()) {
+					throw new ElasticsearchException("multi search item failed: " + item.getFailureMessage());
+				}
+				responses.add(item.getResponse());
+			}
+		}
+		return responses;
+	}
+
+	/*
+	 * Maps a query term to the token the text field analyzer produces for it,
+	 * or to an empty string if the analyzer drops it. Results are cached.
+	 * ESUtils.termFreqInQuery already split terms of several tokens, so the
+	 * first token is the whole term.
+	 */
+	String analyze(String term) {
+
+		String token = analyzedTerms.get(term);
+		if (token == null) {
+			Metrics.roundTrip("analyze");
+			AnalyzeResponse response = client.admin().indices()
+					.prepareAnalyze(INDEX, term)
+					.setField(FIELD)
+					.execute()
+					.actionGet();
+			List<AnalyzeResponse.AnalyzeToken> tokens = response.getTokens();
+			token = tokens.isEmpty() ? "" : tokens.get(0).getTerm();
+			analyzedTerms.put(term, token);
+		}
+		return token;
+	}
+
+	/*
+	 * Analyzes every uncached term concurrently, filling the token cache
+	 */
+	void analyzeAll(String[] terms) {
+
+		List<String> uncached = Lists.newArrayList();
+		for (String term : terms) {
+			if (!analyzedTerms.containsKey(term))
+				uncached.add(term);
+		}
+		AsyncBatch<AnalyzeResponse> batch = new AsyncBatch<AnalyzeResponse>(uncached.size());
+		long start = System.nanoTime();
+		for (int i = 0; i < uncached.size(); i++) {
+			Metrics.roundTrip("analyze");
+			client.admin().indices()
+					.prepareAnalyze(INDEX, uncached.get(i))
+					.setField(FIELD)
+					.execute(batch.slot(i));
+		}
+		List<AnalyzeResponse> responses = batch.await();
+		Metrics.record("query.analyze", start);
+		for (int i = 0; i < uncached.size(); i++) {
+			List<AnalyzeResponse.AnalyzeToken> tokens = responses.get(i).getTokens();
+			analyzedTerms.put(uncached.get(i), tokens.isEmpty() ? "" : tokens.get(0).getTerm());
+		}
+	}
+
+	static Map<String,Object> scriptParams(String token) {
+
+		Map<String,Object> params = Maps.newHashMap();
+		params.put("field", FIELD);
+		params.put("term", token);
+		return params;
+	}
+
+	/*
+	 * Cursor over the postings of one term. Every page shares the same
+	 * Postings instance, with docFreq and collectionFreq of the whole term.
+	 */
+	public class Scroll {
+
+		private final String term;
+		private final int pageSize;
+		private String scrollId;
+		private Postings page;
+		private long collectionFreq;
+		private boolean done;
+
+		Scroll(String term, int pageSize) {
+			this.term = term;
+			this.pageSize = pageSize;
+		}
+
+		/*
+		 * Returns the next page of postings, or null once all hits were read
+		 */
+		public Postings next() {
+
+			if (done) {
+				return null;
+			}
+			if (pageSize <= 0) {
+				done = true;
+				return fetch(term);
+			}
+
+			SearchResponse response;
+			if (scrollId == null) {
+				String token = analyze(term);
+				page = new Postings(term, pageSize);
+				if (token.isEmpty()) {
+					done = true;
+					return page;
+				}
+				// The collection frequency comes from the snapshot when it has the term
+				collectionFreq = corpus.collectionFreq(token);
+				SearchRequestBuilder search = scan(token, pageSize, collectionFreq < 0);
+				long start = System.nanoTime();
+				Metrics.roundTrip("search");
+				response = search.execute().actionGet();
+				Metrics.record("query.search", start);
+				page.docFreq = response.getHits().getTotalHits();
+				if (page.docFreq == 0) {
+					done = true;
+					return page;
+				}
+				scrollId = response.getScrollId();
+			}
+
+			long start = System.nanoTime();
+			Metrics.roundTrip("scroll");
+			response = client.prepareSearchScroll(scrollId)
+					.setScroll(SCROLL_KEEP_ALIVE)
+					.execute()
+					.actionGet();
+			Metrics.received(response);
+			Metrics.record("query.search", start);
+			scrollId = response.getScrollId();
+
+			SearchHit[] hits = response.getHits().getHits();
+			if (hits.length == 0) {
+				done = true;
+				return null;
+			}
+
+			page.clear();
+			for (SearchHit hit : hits) {
+				add(page, hit);
+			}
+			if (collectionFreq < 0) {
+				collectionFreq = ((Number) hits[0].field("ttf").getValue()).longValue();
+			}
+			page.collectionFreq = collectionFreq;
+			return page;
+		}
+
+		/*
+		 * Releases the scroll context when the cursor is abandoned early
+		 */
+		public void close() {
+
+			if (!done && scrollId != null) {
+				Metrics.roundTrip("clearScroll");
+				client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+			}
+			done = true;
+		}
+	}
+
+	/*
+	 * Scan search over the postings of a token, optionally with the ttf
+	 * script field for tokens missing from the corpus snapshot
+	 */
+	SearchRequestBuilder scan(String token, int pageSize, boolean withTtf) {
+
+		SearchRequestBuilder search = client.prepareSearch(INDEX)
+				.setTypes(TYPE)
+				.setSearchType(SearchType.SCAN)
+				.setScroll(SCROLL_KEEP_ALIVE)
+				.setQuery(termQuery(FIELD, token))
+				.setSize(pageSize)
+				.setFetchSource(false)
+				.addField("docno")
+				.addScriptField("tf", TF_SCRIPT, scriptParams(token));
+		if (withTtf) {
+			search.addScriptField("ttf", TTF_SCRIPT, scriptParams(token));
+		}
+		return search;
+	}
+
+	/*
+	 * Receives the pages of fetchConcurrently() on the calling thread
+	 */
+	public interface PageHandler {
+		void page(int termIndex, Postings page) throws IOException;
+	}
+
+	/*
+	 * Streams the postings of all terms concurrently. Every term gets its
+	 * own scan/scroll; at most maxOutstanding requests are in flight, and
+	 * each term's next page is requested as soon as its previous page
+	 * arrives. Pages are handed to the handler on the calling thread in
+	 * arrival order, so the handler needs no locking. A page Postings
+	 * instance is reused for the next page of its term. Pages always hold
+	 * PAGE_SIZE hits; QueryTask only streams while -Dquery.scroll is on.
+	 * When a term fails, the scroll contexts still open are cleared before
+	 * the failure is rethrown.
+	 */
+	public void fetchConcurrently(String[] terms, int maxOutstanding, PageHandler handler) throws IOException {
+
+		String[] tokens = tokens(terms);
+		final BlockingQueue<TermStream> arrived = new LinkedBlockingQueue<TermStream>();
+		Deque<TermStream> ready = new ArrayDeque<TermStream>();
+		List<TermStream> streams = Lists.newArrayList();
+		for (int t = 0; t < terms.length; t++) {
+			TermStream stream = new TermStream(t, terms[t], tokens[t], arrived);
+			if (tokens[t].isEmpty()) {
+				handler.page(t, stream.page);
+			} else {
+				ready.add(stream);
+				streams.add(stream);
+			}
+		}
+
+		int outstanding = 0;
+		long start = System.nanoTime();
+		try {
+			while (outstanding > 0 || !ready.isEmpty()) {
+				while (outstanding < maxOutstanding && !ready.isEmpty()) {
+					ready.poll().requestNext();
+					outstanding++;
+				}
+				TermStream stream;
+				try {
+					stream = arrived.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ElasticsearchException("interrupted while fetching postings", e);
+				}
+				outstanding--;
+				Postings page = stream.receive();
+				if (page != null) {
+					Metrics.record("query.search", start);
+					handler.page(stream.termIndex, page);
+					start = System.nanoTime();
+				}
+				if (!stream.done) {
+					ready.add(stream);
+				}
+			}
+		} catch (IOException e) {
+			release(streams, arrived, outstanding);
+			throw e;
+		} catch (RuntimeException e) {
+			release(streams, arrived, outstanding);
+			throw e;
+		}
+	}
+
+	/*
+	 * Clears the scroll contexts of the unfinished streams after a failure.
+	 * Requests still in flight are awaited first (up to the keep alive), so
+	 * the scroll ids they return are cleared too.
+	 */
+	private void release(List<TermStream> streams, BlockingQueue<TermStream> arrived, int outstanding) {
+
+		for (; outstanding > 0; outstanding--) {
+			TermStream stream;
+			try {
+				stream = arrived.poll(SCROLL_KEEP_ALIVE.millis(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (stream == null)
+				break;
+			stream.park();
+		}
+		ClearScrollRequestBuilder clearScroll = client.prepareClearScroll();
+		int open = 0;
+		for (TermStream stream : streams) {
+			if (!stream.done && stream.scrollId != null) {
+				clearScroll.addScrollId(stream.scrollId);
+				open++;
+			}
+		}
+		if (open == 0)
+			return;
+		try {
+			Metrics.roundTrip("clearScroll");
+			clearScroll.execute().actionGet();
+		} catch (RuntimeException e) {
+			// The original failure is what the caller needs to see
+			System.err.println("could not clear " + open + " scroll contexts: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Scan/scroll state of one term in fetchConcurrently(). The listener
+	 * only parks the response; it is turned into a page on the query thread.
+	 */
+	private class TermStream implements ActionListener<SearchResponse> {
+
+		final int termIndex;
+		final String token;
+		final Postings page;
+		final BlockingQueue<TermStream> arrived;
+		long collectionFreq;
+		String scrollId;
+		boolean done;
+
+		private volatile SearchResponse response;
+		private volatile Throwable failure;
+
+		TermStream(int termIndex, String term, String token, BlockingQueue<TermStream> arrived) {
+			this.termIndex = termIndex;
+			this.token = token;
+			this.page = new Postings(term, PAGE_SIZE);
+			this.arrived = arrived;
+			this.collectionFreq = token.isEmpty() ? 0 : corpus.collectionFreq(token);
+		}
+
+		void requestNext() {
+
+			if (scrollId == null) {
+				Metrics.roundTrip("search");
+				scan(token, PAGE_SIZE, collectionFreq < 0).execute(this);
+			} else {
+				Metrics.roundTrip("scroll");
+				client.prepareSearchScroll(scrollId).setScroll(SCROLL_KEEP_ALIVE).execute(this);
+			}
+		}
+
+		public void onResponse(SearchResponse response) {
+			this.response = response;
+			arrived.add(this);
+		}
+
+		public void onFailure(Throwable e) {
+			this.failure = e;
+			arrived.add(this);
+		}
+
+		/*
+		 * Keeps the scroll id of a response that arrived after the fetch
+		 * failed, so release() can clear it
+		 */
+		void park() {
+
+			SearchResponse current = response;
+			response = null;
+			if (current != null && current.getScrollId() != null)
+				scrollId = current.getScrollId();
+		}
+
+		/*
+		 * Consumes the last response. Returns the next page, an empty page
+		 * for a term without hits, or null when there is no page to hand out.
+		 */
+		Postings receive() {
+
+			if (failure != null) {
+				throw new ElasticsearchException("postings of " + token + " failed", failure);
+			}
+			SearchResponse current = response;
+			response = null;
+			Metrics.received(current);
+
+			boolean first = scrollId == null;
+			scrollId = current.getScrollId();
+			if (first) {
+				// The scan response only carries the total hits
+				page.docFreq = current.getHits().getTotalHits();
+				if (page.docFreq == 0) {
+					done = true;
+					return page;
+				}
+				return null;
+			}
+
+			SearchHit[] hits = current.getHits().getHits();
+			if (hits.length == 0) {
+				done = true;
+				return null;
+			}
+			page.clear();
+			for (SearchHit hit : hits) {
+				add(page, hit);
+			}
+			if (collectionFreq < 0) {
+				collectionFreq = ((Number) hits[0].field("ttf").getValue()).longValue();
+			}
+			page.collectionFreq = collectionFreq;
+			return page;
+		}
+	}
+
+	/*
+	 * Number of primary shards of the index, read once from the cluster state
+	 */
+	int shards() {
+
+		if (shards == 0) {
+			Metrics.roundTrip("clusterState");
+			shards = client.admin().cluster().prepareState()
+					.setIndices(INDEX)
+					.execute()
+					.actionGet()
+					.getState()
+					.getMetaData()
+					.index(INDEX)
+					.getNumberOfShards();
+		}
+		return shards;
+	}
+
+	/*
+	 * Returns all postings of a token on one shard. The scan is routed to a
+	 * copy of the shard with the _shards preference, so docFreq and
+	 * collectionFreq are those of the shard.
+	 */
+	Postings fetchShard(String term, String token, int shard) {
+
+		Postings postings = new Postings(term, PAGE_SIZE);
+		if (token.isEmpty()) {
+			return postings;
+		}
+
+		long start = System.nanoTime();
+		Metrics.roundTrip("search");
+		SearchResponse response = scan(token, PAGE_SIZE, false)
+				.setPreference("_shards:" + shard)
+				.execute()
+				.actionGet();
+		long docFreq = response.getHits().getTotalHits();
+		while (docFreq > 0) {
+			Metrics.roundTrip("scroll");
+			response = client.prepareSearchScroll(response.getScrollId())
+					.setScroll(SCROLL_KEEP_ALIVE)
+					.execute()
+					.actionGet();
+			Metrics.received(response);
+			SearchHit[] hits = response.getHits().getHits();
+			if (hits.length == 0) {
+				break;
+			}
+			for (SearchHit hit : hits) {
+				add(postings, hit);
+			}
+		}
+		// collectionFreq is the sum of the tfs added above
+		postings.docFreq = docFreq;
+		Metrics.record("query.shardSearch", start);
+		return postings;
+	}
+
+	static void add(Postings postings, SearchHit hit) {
+
+		int tf = ((Number) hit.field("tf").getValue()).intValue();
+		String docno = hit.field("docno").getValue().toString();
+		postings.add(Integer.parseInt(hit.getId()), docno, tf);
+	}
+}
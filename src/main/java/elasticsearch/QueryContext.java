@@ -0,0 +1,164 @@
+package elasticsearch;
+
+/**
+ *  State shared by all QueryTasks of a run: the client, the postings fetcher
+ *  and cache, document lengths, the corpus statistics and the enabled retrieval models. Everything here is either
+ *  immutable or safe for concurrent use.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.action.termvector.MultiTermVectorsItemResponse;
+import org.elasticsearch.action.termvector.MultiTermVectorsRequestBuilder;
+import org.elasticsearch.action.termvector.MultiTermVectorsResponse;
+import org.elasticsearch.action.termvector.TermVectorRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Lists;
+
+public class QueryContext implements DocLengthSource, TopK.DocnoLookup {
+
+	final Client client;
+	final PostingsFetcher fetcher;
+	// Null when the postings cache is disabled
+	final PostingsCache postingsCache;
+	final DocLengthStore docLengths;
+	final DocnoDictionary dictionary;
+
+	final CorpusStatistics corpus;
+	final List<RetrievalModel> models;
+
+	// Collection frequency per query term, filled by whichever task sees the term first
+	final ConcurrentHashMap<String,Double> termFreqCorpus;
+
+	// Lengths of documents indexed after the DocLengthStore was built
+	private final ConcurrentHashMap<Integer,Double> lateDocLengths;
+	private final ConcurrentHashMap<Integer,String> lateDocnos;
+
+	public QueryContext(Client client, DocLengthStore docLengths, DocnoDictionary dictionary,
+			CorpusStatistics corpus, List<RetrievalModel> models) {
+		this(client, docLengths, dictionary, corpus, models, null);
+	}
+
+	public QueryContext(Client client, DocLengthStore docLengths, DocnoDictionary dictionary,
+			CorpusStatistics corpus, List<RetrievalModel> models, PostingsCache postingsCache) {
+		this.client = client;
+		this.fetcher = new PostingsFetcher(client, corpus);
+		this.postingsCache = postingsCache;
+		this.docLengths = docLengths;
+		this.dictionary = dictionary;
+		this.corpus = corpus;
+		this.models = models;
+		this.termFreqCorpus = new ConcurrentHashMap<String,Double>();
+		this.lateDocLengths = new ConcurrentHashMap<Integer,Double>();
+		this.lateDocnos = new ConcurrentHashMap<Integer,String>();
+	}
+
+	private QueryContext(QueryContext context, List<RetrievalModel> models) {
+		this.client = context.client;
+		this.fetcher = context.fetcher;
+		this.postingsCache = context.postingsCache;
+		this.docLengths = context.docLengths;
+		this.dictionary = context.dictionary;
+		this.corpus = context.corpus;
+		this.models = models;
+		this.termFreqCorpus = context.termFreqCorpus;
+		this.lateDocLengths = context.lateDocLengths;
+		this.lateDocnos = context.lateDocnos;
+	}
+
+	/*
+	 * Returns a context scoring with other models that shares the fetcher,
+	 * the caches and the statistics of this one
+	 */
+	QueryContext withModels(List<RetrievalModel> models) {
+		return new QueryContext(this, models);
+	}
+
+	/*
+	 * Returns the length of the given document, asking Elasticsearch only for
+	 * documents missing from the store
+	 */
+	public double docLength(int docId) throws IOException {
+
+		int docLength = docLengths.get(docId);
+		if (docLength != 0) {
+			return docLength;
+		}
+		Double lateDocLength = lateDocLengths.get(docId);
+		if (lateDocLength == null) {
+			Metrics.roundTrip("termVectors");
+			lateDocLength = ESUtils.docLengthFunction(String.valueOf(docId), client);
+			lateDocLengths.put(docId, lateDocLength);
+		}
+		return lateDocLength;
+	}
+
+	/*
+	 * Looks up the lengths of all documents of the postings block that are
+	 * missing from the store with batched multi term vector requests, so
+	 * docLength() does not need a round trip per document.
+	 */
+	void prefetchDocLengths(Postings postings) throws IOException {
+
+		List<String> missing = null;
+		for (int i = 0; i < postings.size(); i++) {
+			int docId = postings.docIds[i];
+			if (docLengths.get(docId) == 0 && !lateDocLengths.containsKey(docId)) {
+				if (missing == null)
+					missing = Lists.newArrayList();
+				missing.add(String.valueOf(docId));
+			}
+		}
+		if (missing == null) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		int batchSize = PostingsFetcher.MAX_BATCH_SIZE;
+		int batches = (missing.size() + batchSize - 1) / batchSize;
+		AsyncBatch<MultiTermVectorsResponse> batch = new AsyncBatch<MultiTermVectorsResponse>(batches);
+		for (int b = 0; b < batches; b++) {
+			MultiTermVectorsRequestBuilder termVectors = client.prepareMultiTermVectors();
+			for (String id : missing.subList(b * batchSize, Math.min(missing.size(), (b + 1) * batchSize))) {
+				termVectors.add(new TermVectorRequest("ap_dataset", "document", id)
+						.selectedFields(new String[] {"text"})
+						.offsets(false)
+						.positions(false)
+						.payloads(false)
+						.termStatistics(false)
+						.fieldStatistics(false));
+			}
+			Metrics.roundTrip("termVectors");
+			termVectors.execute(batch.slot(b));
+		}
+		for (MultiTermVectorsResponse response : batch.await()) {
+			Metrics.received(response);
+			for (MultiTermVectorsItemResponse item : response.getResponses()) {
+				if (!item.isFailed()) {
+					lateDocLengths.put(Integer.parseInt(item.getId()), ESUtils.sumTermFreqs(item.getResponse().getFields()));
+				}
+			}
+		}
+		Metrics.record("query.termVectors", start);
+	}
+
+	/*
+	 * Returns the docno of the given document id
+	 */
+	public String docno(int docId) {
+		String docno = dictionary.docno(docId);
+		return docno != null ? docno : lateDocnos.get(docId);
+	}
+
+	/*
+	 * Remembers the docno of a document missing from the dictionary
+	 */
+	void registerDocno(int docId, String docno) {
+		if (dictionary.docno(docId) == null) {
+			lateDocnos.put(docId, docno);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package elasticsearch;
+
+/**
+ *  Ranked lists produced by one QueryTask, one per model, in the order the
+ *  run files are written.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class QueryResult {
+
+	final String queryNum;
+	final Map<String,Ranking> rankings = new LinkedHashMap<String,Ranking>();
+
+	public QueryResult(String queryNum) {
+		this.queryNum = queryNum;
+	}
+
+	void put(String model, Ranking ranking) {
+		rankings.put(model, ranking);
+	}
+
+	public String getQueryNum() {
+		return queryNum;
+	}
+
+	public Map<String,Ranking> getRankings() {
+		return rankings;
+	}
+}
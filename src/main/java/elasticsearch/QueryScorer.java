@@ -0,0 +1,112 @@
+package elasticsearch;
+
+/**
+ *  QueryScorer holds the scoring state of one query: the score accumulator,
+ *  per block scratch arrays and the top-k selector. It is fed postings
+ *  blocks by a backend (Elasticsearch or Lucene) and produces the ranked
+ *  list of every model.
+ *  
+ *  One instance is reused for all queries run by a thread.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.List;
+
+public class QueryScorer {
+
+	final List<RetrievalModel> models;
+	private final DocLengthSource docLengthSource;
+	private final ScoreAccumulator accumulator;
+	private final TopK topK;
+
+	// Per block scratch space, grown to the largest postings block seen
+	private double[] docLengths = new double[0];
+	private double[] scores = new double[0];
+
+	public QueryScorer(List<RetrievalModel> models, int maxDocId, DocLengthSource docLengthSource,
+			TopK.DocnoLookup docnos, int k) {
+		this.models = models;
+		this.docLengthSource = docLengthSource;
+		this.accumulator = new ScoreAccumulator(models.size(), maxDocId);
+		this.topK = new TopK(k, docnos);
+	}
+
+	/*
+	 * Starts a new query
+	 */
+	public void reset() {
+		accumulator.reset();
+	}
+
+	/*
+	 * Scores one block of postings with every model and adds the scores to
+	 * the accumulator
+	 */
+	public void score(TermStats termStats, int termIndex, Postings postings) throws IOException {
+
+		long start = System.nanoTime();
+		int n = postings.size();
+		if (docLengths.length < n) {
+			docLengths = new double[n];
+			scores = new double[n];
+		}
+		for (int i = 0; i < n; i++) {
+			int docId = postings.docIds[i];
+			docLengths[i] = docLengthSource.docLength(docId);
+			accumulator.touch(docId, termIndex);
+		}
+		for (int model = 0; model < models.size(); model++) {
+			models.get(model).scoreBlock(termStats, postings.tfs, docLengths, n, scores);
+			for (int i = 0; i < n; i++) {
+				accumulator.add(model, postings.docIds[i], scores[i]);
+			}
+		}
+		Metrics.record("query.scoring", start);
+	}
+
+	/*
+	 * Adds the missing term scores of the language models, then selects the
+	 * top k documents of every model
+	 */
+	public QueryResult finish(String queryNum, TermStats[] queryTerms) throws IOException {
+
+		// Update score for non-occurring terms in the documents
+		long start = System.nanoTime();
+		ESModels.lmNonTerms(accumulator, models, queryTerms, docLengthSource);
+		Metrics.record("query.lmSmoothing", start);
+
+		start = System.nanoTime();
+		QueryResult result = new QueryResult(queryNum);
+		for (int model = 0; model < models.size(); model++) {
+			result.put(models.get(model).name(), rank(model));
+		}
+		Metrics.record("query.ranking", start);
+		Metrics.recordValue("query.matchedDocs", accumulator.size());
+		return result;
+	}
+
+	/*
+	 * Selects the k best documents of the given model
+	 */
+	Ranking rank(int model) {
+
+		topK.clear();
+		for (int i = 0; i < accumulator.size(); i++) {
+			int docId = accumulator.docAt(i);
+			topK.offer(docId, accumulator.score(model, docId));
+		}
+		return topK.drain();
+	}
+
+	/*
+	 * Checks the number of distinct query terms against the matched-terms bitmask
+	 */
+	static void checkQueryTerms(String queryNum, int terms) {
+
+		if (terms > ScoreAccumulator.MAX_QUERY_TERMS) {
+			throw new IllegalArgumentException("query " + queryNum + " has more than "
+					+ ScoreAccumulator.MAX_QUERY_TERMS + " distinct terms");
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package elasticsearch;
+
+/**
+ *  QueryService keeps the cluster connection, the corpus statistics, document
+ *  lengths, docnos and the postings cache loaded and answers queries over
+ *  HTTP on the loopback interface (-Dservice.port, 8088 by default), so a
+ *  query costs its postings requests instead of a node start and a
+ *  statistics load.
+ *
+ *  GET  /query?q=<text>[&num=<id>][&models=okapiBM25,uniJM][&k=<n>]
+ *  	scores one ad-hoc query, with the stop words removed like in the
+ *  	query file.
+ *  POST /queries[?models=...][&k=<n>][&format=trec]
+ *  	scores every query of a query file sent as the request body on a
+ *  	pool of -Dquery.threads workers.
+ *  GET  /metrics
+ *  	the Metrics summary since the service started.
+ *  POST /reload
+ *  	reloads the statistics and the postings cache after reindexing.
+ *
+ *  Models default to -Dquery.models. Responses are JSON with the top k
+ *  documents per model and, per query, the latency, the Elasticsearch round
+ *  trips and the postings cache hits and misses; format=trec returns run
+ *  file lines tagged with the model name instead. Requests are handled by
+ *  -Dservice.threads threads. Queries are scored like in ESQueryProcessor
+ *  (-Dquery.serverSide, -Dquery.sharded, -Dquery.prf) over a ClusterConnection.
+ *
+ *  @author Amod Samant
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class QueryService {
+
+	static final int PORT = Integer.getInteger("service.port", 8088);
+	static final int THREADS = Integer.getInteger("service.threads", 4);
+
+	private final Client client;
+	private final HashSet<String> hashUselessWords;
+	private final ExecutorService queryPool = Executors.newFixedThreadPool(ESQueryProcessor.QUERY_THREADS);
+
+	// Contexts by model selection, all derived from the context of every
+	// model (under "") so they share its caches. Replaced as a whole on reload.
+	private volatile ConcurrentHashMap<String,QueryContext> contexts;
+
+	QueryService(Client client, HashSet<String> hashUselessWords) throws IOException {
+		this.client = client;
+		this.hashUselessWords = hashUselessWords;
+		reload();
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		final ClusterConnection connection = ClusterConnection.open();
+		final Client client = connection.client();
+
+		long start = System.nanoTime();
+		final QueryService service = new QueryService(client, ESUtils.createHashSetStopAndExtra());
+		Metrics.record("service.startup", start);
+		final HttpServer server = service.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT));
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop(0);
+				service.close();
+				try {
+					Metrics.writeSummary("service");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				connection.close();
+			}
+		});
+		System.out.println("query service listening on " + server.getAddress());
+	}
+
+	/*
+	 * Starts the HTTP endpoint on the given address
+	 */
+	HttpServer listen(InetSocketAddress address) throws IOException {
+
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/query", new Endpoint("GET") {
+			void handle(HttpExchange exchange, Map<String,String> params) throws Exception {
+				String text = params.get("q");
+				if (text == null)
+					throw new IllegalArgumentException("Missing parameter q");
+				String queryNum = params.containsKey("num") ? params.get("num") : "0";
+				Answer answer = answer(context(params), queryNum, clean(text));
+				if ("trec".equals(params.get("format")))
+					sendTrec(exchange, Lists.newArrayList(answer), k(params));
+				else
+					send(exchange, 200, answer.toJson(k(params)).toString(1), "application/json");
+			}
+		});
+		server.createContext("/queries", new Endpoint("POST") {
+			void handle(HttpExchange exchange, Map<String,String> params) throws Exception {
+				long start = System.nanoTime();
+				BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+				List<Answer> answers = answerAll(context(params), ESQueryProcessor.readQueries(body, hashUselessWords));
+				Metrics.record("service.queries", start);
+				if ("trec".equals(params.get("format"))) {
+					sendTrec(exchange, answers, k(params));
+					return;
+				}
+				JSONArray queries = new JSONArray();
+				for (Answer answer : answers) {
+					queries.put(answer.toJson(k(params)));
+				}
+				JSONObject json = new JSONObject();
+				json.put("latencyMs", (System.nanoTime() - start) / 1e6);
+				json.put("queries", queries);
+				send(exchange, 200, json.toString(1), "application/json");
+			}
+		});
+		server.createContext("/metrics", new Endpoint("GET") {
+			void handle(HttpExchange exchange, Map<String,String> params) throws Exception {
+				send(exchange, 200, Metrics.summary("service").toString(2), "application/json");
+			}
+		});
+		server.createContext("/reload", new Endpoint("POST") {
+			void handle(HttpExchange exchange, Map<String,String> params) throws Exception {
+				reload();
+				send(exchange, 200, "{\"reloaded\": true}", "application/json");
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(THREADS));
+		server.start();
+		return server;
+	}
+
+	/*
+	 * Loads the statistics and opens the postings cache again, for an index
+	 * that changed since the service started
+	 */
+	synchronized void reload() throws IOException {
+
+		long start = System.nanoTime();
+		QueryContext context = ESQueryProcessor.openContext(client, ESModels.all());
+		ConcurrentHashMap<String,QueryContext> fresh = new ConcurrentHashMap<String,QueryContext>();
+		fresh.put("", context);
+		contexts = fresh;
+		Metrics.record("service.reload", start);
+		System.out.println("statistics loaded for index version " + context.corpus.getIndexVersion());
+	}
+
+	void close() {
+		queryPool.shutdownNow();
+	}
+
+	/*
+	 * Returns the context of the models selected by the request
+	 */
+	private QueryContext context(Map<String,String> params) {
+
+		List<RetrievalModel> models = ESModels.forNames(
+				params.containsKey("models") ? params.get("models") : ESQueryProcessor.MODELS);
+		String key = key(models);
+		ConcurrentHashMap<String,QueryContext> current = contexts;
+		QueryContext context = current.get(key);
+		if (context == null) {
+			current.putIfAbsent(key, current.get("").withModels(models));
+			context = current.get(key);
+		}
+		return context;
+	}
+
+	private static String key(List<RetrievalModel> models) {
+
+		StringBuilder key = new StringBuilder();
+		for (RetrievalModel model : models) {
+			key.append(model.name()).append(',');
+		}
+		return key.toString();
+	}
+
+	private static int k(Map<String,String> params) {
+		return params.containsKey("k") ? Math.min(Integer.parseInt(params.get("k")), QueryTask.MAX_RANK) : QueryTask.MAX_RANK;
+	}
+
+	/*
+	 * Cleans an ad-hoc query like the lines of the query file: punctuation
+	 * and stop words are removed
+	 */
+	String clean(String text) {
+		return ESQueryProcessor.removeStopWords(text.replaceAll("[,.;:!?]", " ").trim().replaceAll("\\s+", " "),
+				hashUselessWords);
+	}
+
+	/*
+	 * Scores one query on the calling thread
+	 */
+	Answer answer(QueryContext context, String queryNum, String queryString) throws Exception {
+
+		long start = System.nanoTime();
+		Metrics.beginQuery();
+		long[] counts;
+		QueryResult result;
+		try {
+			result = ESQueryProcessor.task(context, queryNum, queryString, hashUselessWords).call();
+		} finally {
+			counts = Metrics.endQuery();
+		}
+		Metrics.record("service.query", start);
+		return new Answer(result, counts, System.nanoTime() - start);
+	}
+
+	/*
+	 * Scores the {queryNum, queryString} pairs on the query pool, answers
+	 * are returned in the same order
+	 */
+	List<Answer> answerAll(final QueryContext context, List<String[]> queries)
+			throws InterruptedException, ExecutionException {
+
+		List<Future<Answer>> futures = Lists.newArrayList();
+		for (final String[] query : queries) {
+			futures.add(queryPool.submit(new Callable<Answer>() {
+				public Answer call() throws Exception {
+					return answer(context, query[0], query[1]);
+				}
+			}));
+		}
+		List<Answer> answers = Lists.newArrayList();
+		for (Future<Answer> future : futures) {
+			answers.add(future.get());
+		}
+		return answers;
+	}
+
+	private static void sendTrec(HttpExchange exchange, List<Answer> answers, int k) throws IOException {
+
+		StringBuilder lines = new StringBuilder();
+		for (Answer answer : answers) {
+			for (Map.Entry<String,Ranking> entry : answer.result.getRankings().entrySet()) {
+				Ranking ranking = entry.getValue();
+				for (int rank = 0; rank < Math.min(k, ranking.size()); rank++) {
+					RunWriter.formatLine(lines, answer.result.getQueryNum(), ranking, rank, entry.getKey());
+				}
+			}
+		}
+		send(exchange, 200, lines.toString(), "text/plain");
+	}
+
+	private static void send(HttpExchange exchange, int status, String body, String contentType) throws IOException {
+
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Map<String,String> parameters(URI uri) throws UnsupportedEncodingException {
+
+		Map<String,String> params = Maps.newHashMap();
+		String query = uri.getRawQuery();
+		if (query == null)
+			return params;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0)
+				params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	/*
+	 * Handler of one path: checks the method, parses the parameters and
+	 * turns failures into error responses
+	 */
+	private abstract static class Endpoint implements HttpHandler {
+
+		private final String method;
+
+		Endpoint(String method) {
+			this.method = method;
+		}
+
+		abstract void handle(HttpExchange exchange, Map<String,String> params) throws Exception;
+
+		public void handle(HttpExchange exchange) throws IOException {
+
+			try {
+				if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+					send(exchange, 405, error("Use " + method), "application/json");
+					return;
+				}
+				handle(exchange, parameters(exchange.getRequestURI()));
+			} catch (IllegalArgumentException e) {
+				send(exchange, 400, error(e.getMessage()), "application/json");
+			} catch (Exception e) {
+				e.printStackTrace();
+				send(exchange, 500, error(String.valueOf(e)), "application/json");
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private static String error(String message) {
+			return new JSONObject().put("error", message).toString();
+		}
+	}
+
+	/*
+	 * Ranked lists of one query with what it cost
+	 */
+	static class Answer {
+
+		final QueryResult result;
+		// Round trips and cache lookups of the query, see Metrics.endQuery()
+		final long[] counts;
+		final long nanos;
+
+		Answer(QueryResult result, long[] counts, long nanos) {
+			this.result = result;
+			this.counts = counts;
+			this.nanos = nanos;
+		}
+
+		JSONObject toJson(int k) {
+
+			JSONObject json = new JSONObject();
+			json.put("num", result.getQueryNum());
+			json.put("latencyMs", nanos / 1e6);
+			json.put("roundTrips", counts[Metrics.ROUND_TRIPS]);
+			json.put("cacheHits", counts[Metrics.CACHE_HITS]);
+			json.put("cacheMisses", counts[Metrics.CACHE_MISSES]);
+			JSONObject models = new JSONObject();
+			for (Map.Entry<String,Ranking> entry : result.getRankings().entrySet()) {
+				Ranking ranking = entry.getValue();
+				JSONArray documents = new JSONArray();
+				for (int rank = 0; rank < Math.min(k, ranking.size()); rank++) {
+					documents.put(new JSONObject().put("docno", ranking.docno(rank)).put("score", ranking.score(rank)));
+				}
+				models.put(entry.getKey(), documents);
+			}
+			json.put("models", models);
+			return json;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package elasticsearch;
+
+/**
+ *  QueryTask scores one query with the models enabled in the context. Every task works on its
+ *  own QueryScorer (reused per thread), so tasks can run concurrently against
+ *  a shared QueryContext.
+ *
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+
+public class QueryTask implements Callable<QueryResult> {
+
+	static final int MAX_RANK = Integer.getInteger("query.k", 1000);
+	// Streaming pages needs scan/scroll, so -Dquery.scroll=false or a page size
+	// of 0 fall back to the single search of PostingsFetcher.Scroll
+	static final boolean ASYNC = Boolean.parseBoolean(System.getProperty("query.async", "true"))
+			&& PostingsFetcher.SCROLL && PostingsFetcher.PAGE_SIZE > 0;
+
+	private static final ThreadLocal<QueryScorer> SCORERS = new ThreadLocal<QueryScorer>();
+
+	private final QueryContext context;
+	private final String queryNum;
+	private final Map<String,Double> termFreqQueryMap;
+
+	public QueryTask(QueryContext context, String queryNum, String queryString) {
+		this(context, queryNum, ESUtils.termFreqInQuery(queryString));
+	}
+
+	/*
+	 * Scores a query given as weighted terms, e.g. an expanded query
+	 */
+	public QueryTask(QueryContext context, String queryNum, Map<String,Double> termFreqQueryMap) {
+		this.context = context;
+		this.queryNum = queryNum;
+		this.termFreqQueryMap = termFreqQueryMap;
+	}
+
+	public QueryResult call() throws IOException {
+
+		long start = System.nanoTime();
+		Metrics.beginQuery();
+		try {
+			return score();
+		} finally {
+			Metrics.endQuery();
+			Metrics.record("query.total", start);
+		}
+	}
+
+	private QueryResult score() throws IOException {
+
+		QueryScorer scorer = SCORERS.get();
+		if (scorer == null || scorer.models != context.models) {
+			scorer = new QueryScorer(context.models, context.dictionary.maxDocId(), context, context, MAX_RANK);
+			SCORERS.set(scorer);
+		}
+		scorer.reset();
+
+		QueryScorer.checkQueryTerms(queryNum, termFreqQueryMap.size());
+		String[] terms = termFreqQueryMap.keySet().toArray(new String[termFreqQueryMap.size()]);
+		TermStats[] queryTerms = new TermStats[terms.length];
+
+		// Cached terms skip Elasticsearch, small terms come back in one
+		// multi-search batch, the rest are streamed concurrently or scrolled
+		// one after the other
+		PostingsCache cache = context.postingsCache;
+		Postings[] cached = new Postings[terms.length];
+		List<String> uncached = Lists.newArrayList();
+		for(int termIndex = 0; termIndex < terms.length; termIndex++) {
+			if(cache != null)
+				cached[termIndex] = cache.get(terms[termIndex]);
+			if(cached[termIndex] == null)
+				uncached.add(terms[termIndex]);
+		}
+		Map<String,Postings> batched = Maps.newHashMap();
+		if(PostingsFetcher.MULTI_SEARCH && !uncached.isEmpty()) {
+			String[] fetchTerms = uncached.toArray(new String[uncached.size()]);
+			Postings[] fetched = context.fetcher.fetchAll(fetchTerms);
+			for(int i = 0; i < fetchTerms.length; i++) {
+				if(fetched[i] != null)
+					batched.put(fetchTerms[i], fetched[i]);
+			}
+		}
+		Postings[] streamed = new Postings[terms.length];
+		if(ASYNC)
+			streamAll(scorer, terms, termFreqQueryMap, queryTerms, cached, batched, streamed);
+
+		for(int termIndex = 0; termIndex < terms.length; termIndex++) {
+
+			String term = terms[termIndex];
+			double tfq = termFreqQueryMap.get(term);
+
+			if(cached[termIndex] != null) {
+				addPostings(scorer, queryTerms, termIndex, tfq, cached[termIndex]);
+			} else if(batched.containsKey(term)) {
+				addPostings(scorer, queryTerms, termIndex, tfq, batched.get(term));
+				if(cache != null)
+					cache.put(batched.get(term));
+			} else if(streamed[termIndex] != null) {
+				// Scored as the pages arrived
+				if(cache != null)
+					cache.put(streamed[termIndex]);
+			} else {
+				PostingsFetcher.Scroll scroll = context.fetcher.open(term);
+				Postings complete = cache != null ? new Postings(term, 0) : null;
+				Postings postings;
+				while((postings = scroll.next())!=null) {
+					addPostings(scorer, queryTerms, termIndex, tfq, postings);
+					if(complete != null)
+						complete.addAll(postings);
+				}
+				if(complete != null)
+					cache.put(complete);
+			}
+			if(queryTerms[termIndex] == null) {
+				queryTerms[termIndex] = new TermStats(term, tfq, 0, 0, context.corpus);
+			}
+		}
+
+		return scorer.finish(queryNum, queryTerms);
+	}
+
+	/*
+	 * Fetches the terms that are neither cached nor batched concurrently and
+	 * scores every page as it arrives. streamed[termIndex] is set for each
+	 * such term, holding its complete postings when the cache is enabled.
+	 */
+	private void streamAll(final QueryScorer scorer, String[] terms, final Map<String,Double> termFreqQueryMap,
+			final TermStats[] queryTerms, Postings[] cached, Map<String,Postings> batched,
+			final Postings[] streamed) throws IOException {
+
+		List<Integer> streamTerms = Lists.newArrayList();
+		for(int termIndex = 0; termIndex < terms.length; termIndex++) {
+			if(cached[termIndex] == null && !batched.containsKey(terms[termIndex])) {
+				streamTerms.add(termIndex);
+				streamed[termIndex] = new Postings(terms[termIndex], 0);
+			}
+		}
+		if(streamTerms.isEmpty())
+			return;
+
+		final int[] termIndexes = new int[streamTerms.size()];
+		String[] fetchTerms = new String[streamTerms.size()];
+		for(int i = 0; i < termIndexes.length; i++) {
+			termIndexes[i] = streamTerms.get(i);
+			fetchTerms[i] = terms[termIndexes[i]];
+		}
+		final boolean keep = context.postingsCache != null;
+		context.fetcher.fetchConcurrently(fetchTerms, PostingsFetcher.MAX_OUTSTANDING, new PostingsFetcher.PageHandler() {
+			public void page(int i, Postings page) throws IOException {
+				int termIndex = termIndexes[i];
+				addPostings(scorer, queryTerms, termIndex, termFreqQueryMap.get(page.getTerm()), page);
+				if(keep)
+					streamed[termIndex].addAll(page);
+			}
+		});
+	}
+
+	/*
+	 * Records the statistics of the term on its first block, then scores the block
+	 */
+	private void addPostings(QueryScorer scorer, TermStats[] queryTerms, int termIndex,
+			double tfq, Postings postings) throws IOException {
+
+		String term = postings.getTerm();
+		Double tfdC = context.termFreqCorpus.get(term);
+		if(tfdC == null) {
+			tfdC = (double) postings.getCollectionFreq();
+			context.termFreqCorpus.put(term, tfdC);
+		}
+		if(queryTerms[termIndex] == null) {
+			queryTerms[termIndex] = new TermStats(term, tfq, postings.getDocFreq(), tfdC, context.corpus);
+		}
+		context.prefetchDocLengths(postings);
+		for (int i = 0; i < postings.size(); i++) {
+			context.registerDocno(postings.docIds[i], postings.docnos[i]);
+		}
+		scorer.score(queryTerms[termIndex], termIndex, postings);
+	}
+}
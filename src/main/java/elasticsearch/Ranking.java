@@ -0,0 +1,72 @@
+package elasticsearch;
+
+/**
+ *  A ranked list of one query for one model: docnos and scores, best first.
+ *  Rankings of disjoint document sets (e.g. shards) are combined with merge().
+ *  
+ *  @author Amod Samant
+ */
+import java.util.List;
+
+public class Ranking {
+
+	final String[] docnos;
+	final double[] scores;
+
+	public Ranking(int size) {
+		this.docnos = new String[size];
+		this.scores = new double[size];
+	}
+
+	void set(int rank, String docno, double score) {
+		docnos[rank] = docno;
+		scores[rank] = score;
+	}
+
+	public int size() {
+		return docnos.length;
+	}
+
+	public String docno(int rank) {
+		return docnos[rank];
+	}
+
+	public double score(int rank) {
+		return scores[rank];
+	}
+
+	/*
+	 * Merges rankings of disjoint document sets into the k best documents,
+	 * ordered like TopK: higher score first, then smaller docno
+	 */
+	static Ranking merge(List<Ranking> rankings, int k) {
+
+		int total = 0;
+		for (Ranking ranking : rankings) {
+			total += ranking.size();
+		}
+		Ranking merged = new Ranking(Math.min(k, total));
+		int[] next = new int[rankings.size()];
+		for (int rank = 0; rank < merged.size(); rank++) {
+			int best = -1;
+			for (int r = 0; r < rankings.size(); r++) {
+				if (next[r] < rankings.get(r).size()
+						&& (best < 0 || rankings.get(r).ranksAbove(next[r], rankings.get(best), next[best]))) {
+					best = r;
+				}
+			}
+			Ranking from = rankings.get(best);
+			merged.set(rank, from.docnos[next[best]], from.scores[next[best]]);
+			next[best]++;
+		}
+		return merged;
+	}
+
+	private boolean ranksAbove(int rank, Ranking other, int otherRank) {
+
+		if (scores[rank] != other.scores[otherRank]) {
+			return scores[rank] > other.scores[otherRank];
+		}
+		return docnos[rank].compareTo(other.docnos[otherRank]) < 0;
+	}
+}
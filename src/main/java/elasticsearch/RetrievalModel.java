@@ -0,0 +1,41 @@
+package elasticsearch;
+
+/**
+ *  A retrieval model scoring whole blocks of postings at a time.
+ *  
+ *  Implementations live in ESModels and are looked up by name through
+ *  ESModels.forNames().
+ *  
+ *  @author Amod Samant
+ */
+public interface RetrievalModel {
+
+	/*
+	 * Name of the model, also the name of its run file
+	 */
+	String name();
+
+	/*
+	 * Scores the first n postings of a term. tfs and docLengths are parallel
+	 * arrays; the score of posting i is written to scores[i]. Scores are
+	 * scaled by the term's query weight (okapiBM25 through its tfq factor).
+	 */
+	void scoreBlock(TermStats term, int[] tfs, double[] docLengths, int n, double[] scores);
+
+	/*
+	 * Whether documents also get a score for query terms they do not contain
+	 * (language models)
+	 */
+	boolean scoresMissingTerms();
+
+	/*
+	 * The score of a document that does not contain a term is split into
+	 * missingTermWeight(term) + missingTermDocWeight(docLength), so the term
+	 * part can be computed once per query and the document part once per
+	 * document. Both parts are scaled by the query weight of the term, which
+	 * lmNonTerms applies.
+	 */
+	double missingTermWeight(TermStats term);
+
+	double missingTermDocWeight(CorpusStatistics corpus, double docLength);
+}
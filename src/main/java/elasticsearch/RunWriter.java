@@ -0,0 +1,172 @@
+package elasticsearch;
+
+/**
+ *  RunWriter writes the ranked lists of a whole query run to one TREC run
+ *  file per model (<outputDir>/<model>.txt).
+ *  
+ *  Each file is opened once, when its model first shows up, and stays open
+ *  until close(). Lines are formatted into a reused StringBuilder and copied
+ *  into a per-model byte buffer that is only written to the channel when it
+ *  fills up. Results are written on a background thread in the order they
+ *  are passed to write(), so the query threads never wait for disk.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.common.collect.Maps;
+
+public class RunWriter {
+
+	static final int BUFFER_SIZE = Integer.getInteger("runs.bufferKb", 256) * 1024;
+
+	private final File outputDir;
+	private final Map<String,Channel> channels = Maps.newLinkedHashMap();
+	private final StringBuilder line = new StringBuilder(64);
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+	public RunWriter(File outputDir) {
+		this.outputDir = outputDir;
+		outputDir.mkdirs();
+	}
+
+	/*
+	 * Queues the rankings of one query. Rethrows the failure of an earlier
+	 * write, if any.
+	 */
+	public void write(final QueryResult result) throws IOException {
+
+		checkFailure();
+		writer.execute(new Runnable() {
+			public void run() {
+				if (failure.get() != null)
+					return;
+				try {
+					append(result);
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Waits for the queued results, flushes the buffers and closes the files
+	 */
+	public void close() throws IOException {
+
+		writer.shutdown();
+		try {
+			while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+				System.out.println("Waiting for run files to be written");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing run files", e);
+		}
+		IOException closeFailure = failure.get();
+		for (Channel channel : channels.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (closeFailure == null)
+					closeFailure = e;
+			}
+		}
+		if (closeFailure != null)
+			throw closeFailure;
+	}
+
+	private void checkFailure() throws IOException {
+		IOException e = failure.get();
+		if (e != null)
+			throw new IOException("Writing run files failed", e);
+	}
+
+	/*
+	 * Formats "<queryNum> Q0 <docno> <rank> <score> Exp" lines for every
+	 * model. Only runs on the writer thread.
+	 */
+	void append(QueryResult result) throws IOException {
+
+		long start = System.nanoTime();
+		for (Map.Entry<String,Ranking> entry : result.getRankings().entrySet()) {
+			Channel channel = channels.get(entry.getKey());
+			if (channel == null) {
+				channel = new Channel(new File(outputDir, entry.getKey() + ".txt"));
+				channels.put(entry.getKey(), channel);
+			}
+			Ranking ranking = entry.getValue();
+			for (int rank = 0; rank < ranking.size(); rank++) {
+				line.setLength(0);
+				formatLine(line, result.getQueryNum(), ranking, rank, "Exp");
+				channel.put(line);
+			}
+		}
+		Metrics.record("query.write", start);
+	}
+
+	/*
+	 * Appends the run file line of the given rank
+	 */
+	static void formatLine(StringBuilder line, String queryNum, Ranking ranking, int rank, String runTag) {
+		line.append(queryNum).append(" Q0 ").append(ranking.docno(rank))
+			.append(' ').append(rank + 1).append(' ').append(ranking.score(rank)).append(' ').append(runTag).append('\n');
+	}
+
+	/*
+	 * An open run file with its write buffer
+	 */
+	private static class Channel {
+
+		private final RandomAccessFile file;
+		private final FileChannel fileChannel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Channel(File runFile) throws IOException {
+			file = new RandomAccessFile(runFile, "rw");
+			file.setLength(0);
+			fileChannel = file.getChannel();
+		}
+
+		/*
+		 * Copies an ASCII line into the buffer, writing the buffer out first
+		 * if the line does not fit
+		 */
+		void put(CharSequence line) throws IOException {
+
+			if (buffer.remaining() < line.length())
+				flush();
+			for (int i = 0; i < line.length(); i++) {
+				buffer.put((byte) line.charAt(i));
+			}
+		}
+
+		void flush() throws IOException {
+
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				fileChannel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				file.close();
+			}
+		}
+	}
+}
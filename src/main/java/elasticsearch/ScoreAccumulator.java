@@ -0,0 +1,99 @@
+package elasticsearch;
+
+/**
+ *  Dense per-query score accumulator keyed by internal document id.
+ *  
+ *  Scores live in one primitive double[] per model, and the query terms a
+ *  document matched are kept as a bitmask. The ids touched by a query are
+ *  recorded so reset() only clears those entries, which lets one instance
+ *  be reused for every query a thread runs.
+ *  
+ *  @author Amod Samant
+ */
+import java.util.Arrays;
+
+public class ScoreAccumulator {
+
+	static final int MAX_QUERY_TERMS = 64;
+
+	private final int numModels;
+	private double[][] scores;
+	private long[] matchedTerms;
+	private int[] touched;
+	private int touchedCount;
+
+	public ScoreAccumulator(int numModels, int maxDocId) {
+		this.numModels = numModels;
+		this.scores = new double[numModels][maxDocId + 1];
+		this.matchedTerms = new long[maxDocId + 1];
+		this.touched = new int[1024];
+	}
+
+	/*
+	 * Records that the document matched the query term with the given index
+	 */
+	public void touch(int docId, int termIndex) {
+
+		if (docId >= matchedTerms.length) {
+			grow(docId);
+		}
+		if (matchedTerms[docId] == 0) {
+			if (touchedCount == touched.length) {
+				touched = Arrays.copyOf(touched, touchedCount * 2);
+			}
+			touched[touchedCount++] = docId;
+		}
+		matchedTerms[docId] |= 1L << termIndex;
+	}
+
+	public void add(int model, int docId, double score) {
+		scores[model][docId] += score;
+	}
+
+	public double score(int model, int docId) {
+		return scores[model][docId];
+	}
+
+	public long matchedTerms(int docId) {
+		return matchedTerms[docId];
+	}
+
+	/*
+	 * Number of documents matched by the current query
+	 */
+	public int size() {
+		return touchedCount;
+	}
+
+	public int docAt(int i) {
+		return touched[i];
+	}
+
+	public int numModels() {
+		return numModels;
+	}
+
+	/*
+	 * Clears the entries of the documents touched by the last query
+	 */
+	public void reset() {
+
+		for (int i = 0; i < touchedCount; i++) {
+			int docId = touched[i];
+			for (int model = 0; model < numModels; model++) {
+				scores[model][docId] = 0.0;
+			}
+			matchedTerms[docId] = 0;
+		}
+		touchedCount = 0;
+	}
+
+	private void grow(int docId) {
+
+		int capacity = Math.max(docId + 1, matchedTerms.length + (matchedTerms.length >> 1));
+		for (int model = 0; model < numModels; model++) {
+			scores[model] = Arrays.copyOf(scores[model], capacity);
+		}
+		matchedTerms = Arrays.copyOf(matchedTerms, capacity);
+	}
+}
@@ -0,0 +1,159 @@
+package elasticsearch;
+
+/**
+ *  ServerSideQueryTask scores one query inside Elasticsearch instead of
+ *  pulling every matching posting to the client.
+ *
+ *  Each enabled model becomes a function_score query whose script applies the
+ *  model formula to all query terms of a document, with the corpus and term
+ *  statistics passed as params. Like ESModels, every model but okapiBM25
+ *  scales the score of a term by its query weight w (see TermStats), which
+ *  is below 1 only for expansion terms. The per-model searches go out as one
+ *  multi-search and each returns only the top MAX_RANK hits.
+ *
+ *  Scripts read the document length from the numeric doclength field written
+ *  by ESIndexer.
+ *
+ *  @author Amod Samant
+ */
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.functionScoreQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.scriptFunction;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+
+public class ServerSideQueryTask implements Callable<QueryResult> {
+
+	static final Map<String,String> SCRIPTS = new HashMap<String,String>();
+
+	static {
+		String loop = "double len = doc['doclength'].value; double s = 0; "
+				+ "for (int i = 0; i < terms.size(); i++) { double tf = _index[field][terms[i]].tf(); ";
+
+		SCRIPTS.put("okaptf", loop
+				+ "if (tf > 0) s += tf/(tf+0.5+1.5*(len/avgdl))*w[i]; }; s");
+		SCRIPTS.put("tfidf", loop
+				+ "if (tf > 0) s += tf/(tf+0.5+1.5*(len/avgdl))*Math.log(N/df[i])*w[i]; }; s");
+		SCRIPTS.put("okapiBM25", loop
+				+ "if (tf > 0) s += Math.log((N+0.5)/(df[i]+0.5))*((tf+k1*tf)/(tf+k1*((1-b)+b*(len/avgdl))))"
+				+ "*((tfq[i]+k2*tfq[i])/(tfq[i]+k2)); }; s");
+		// The language models also score the query terms a document does not contain
+		SCRIPTS.put("uniLaplace", loop
+				+ "s += Math.log((tf+1)/(len+V))*w[i]; }; s");
+		SCRIPTS.put("uniJM", loop
+				+ "s += Math.log(lambda*tf/avgdl+(1-lambda)*cf[i]/C)*w[i]; }; s");
+	}
+
+	private final QueryContext context;
+	private final String queryNum;
+	private final Map<String,Double> termFreqQueryMap;
+
+	public ServerSideQueryTask(QueryContext context, String queryNum, String queryString) {
+		this(context, queryNum, ESUtils.termFreqInQuery(queryString));
+	}
+
+	/*
+	 * Scores a query given as weighted terms, e.g. an expanded query
+	 */
+	public ServerSideQueryTask(QueryContext context, String queryNum, Map<String,Double> termFreqQueryMap) {
+		this.context = context;
+		this.queryNum = queryNum;
+		this.termFreqQueryMap = termFreqQueryMap;
+	}
+
+	public QueryResult call() {
+
+		long start = System.nanoTime();
+		Metrics.beginQuery();
+		try {
+			return score();
+		} finally {
+			Metrics.endQuery();
+			Metrics.record("query.total", start);
+		}
+	}
+
+	private QueryResult score() {
+
+		String[] terms = termFreqQueryMap.keySet().toArray(new String[termFreqQueryMap.size()]);
+		String[] tokens = context.fetcher.tokens(terms);
+		long[] docFreqs = context.fetcher.docFreqs(tokens);
+
+		List<String> scriptTerms = Lists.newArrayList();
+		List<Double> tfq = Lists.newArrayList();
+		List<Double> w = Lists.newArrayList();
+		List<Double> df = Lists.newArrayList();
+		List<Double> cf = Lists.newArrayList();
+		BoolQueryBuilder matchAny = boolQuery();
+		for (int t = 0; t < terms.length; t++) {
+			if (docFreqs[t] == 0)
+				continue;
+			scriptTerms.add(tokens[t]);
+			tfq.add(termFreqQueryMap.get(terms[t]));
+			w.add(TermStats.queryWeight(termFreqQueryMap.get(terms[t])));
+			df.add((double) docFreqs[t]);
+			cf.add((double) Math.max(0, context.corpus.collectionFreq(tokens[t])));
+			matchAny.should(termQuery(PostingsFetcher.FIELD, tokens[t]));
+		}
+
+		QueryResult result = new QueryResult(queryNum);
+		if (scriptTerms.isEmpty()) {
+			for (RetrievalModel model : context.models)
+				result.put(model.name(), new Ranking(0));
+			return result;
+		}
+
+		Map<String,Object> params = Maps.newHashMap();
+		params.put("field", PostingsFetcher.FIELD);
+		params.put("terms", scriptTerms);
+		params.put("tfq", tfq);
+		params.put("w", w);
+		params.put("df", df);
+		params.put("cf", cf);
+		params.put("N", context.corpus.numOfDocs);
+		params.put("avgdl", context.corpus.avgDocLength);
+		params.put("C", context.corpus.docLengthC);
+		params.put("V", context.corpus.V);
+		params.put("k1", ESModels.k1);
+		params.put("k2", ESModels.k2);
+		params.put("b", ESModels.b);
+		params.put("lambda", ESModels.lambda);
+
+		List<SearchRequestBuilder> searches = Lists.newArrayList();
+		for (RetrievalModel model : context.models) {
+			String script = SCRIPTS.get(model.name());
+			if (script == null)
+				throw new IllegalArgumentException("No server side script for model " + model.name());
+			searches.add(context.client.prepareSearch(PostingsFetcher.INDEX)
+					.setTypes(PostingsFetcher.TYPE)
+					.setQuery(functionScoreQuery(matchAny, scriptFunction(script, params)).boostMode("replace"))
+					.setSize(QueryTask.MAX_RANK)
+					.setFetchSource(false)
+					.addField("docno"));
+		}
+
+		long start = System.nanoTime();
+		List<SearchResponse> responses = context.fetcher.multiSearch(searches);
+		Metrics.record("query.search", start);
+		for (int model = 0; model < responses.size(); model++) {
+			SearchHit[] hits = responses.get(model).getHits().getHits();
+			Ranking ranking = new Ranking(hits.length);
+			for (int rank = 0; rank < hits.length; rank++) {
+				ranking.set(rank, hits[rank].field("docno").getValue().toString(), hits[rank].getScore());
+			}
+			result.put(context.models.get(model).name(), ranking);
+		}
+		return result;
+	}
+}
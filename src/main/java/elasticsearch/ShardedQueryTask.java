@@ -0,0 +1,208 @@
+package elasticsearch;
+
+/**
+ *  ShardedQueryTask scores one query shard by shard, for an index spread
+ *  over several shards and nodes.
+ *
+ *  The postings of every (shard, term) pair are fetched in parallel with
+ *  scans routed by the _shards preference, so each request is served by one
+ *  copy of one shard. Document frequencies are summed over the shards, and
+ *  so are collection frequencies of terms missing from the corpus snapshot.
+ *  Every shard is then scored into its own QueryScorer, which is exact since
+ *  a document lives on a single shard, and the per shard top-k lists of each
+ *  model are merged on the client.
+ *
+ *  Fetching and scoring run on a pool of -Dquery.shardThreads threads shared
+ *  by all queries. The postings cache is not used, since cached postings
+ *  are not split by shard, and round trips of the pool threads only show in
+ *  the global Metrics counters.
+ *
+ *  @author Amod Samant
+ */
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.collect.Lists;
+
+public class ShardedQueryTask implements Callable<QueryResult> {
+
+	static final int SHARD_THREADS = Integer.getInteger("query.shardThreads", 2 * Runtime.getRuntime().availableProcessors());
+
+	private static final ExecutorService SHARD_POOL = Executors.newFixedThreadPool(SHARD_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "shard-query");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final ThreadLocal<QueryScorer> SCORERS = new ThreadLocal<QueryScorer>();
+
+	private final QueryContext context;
+	private final String queryNum;
+	private final Map<String,Double> termFreqQueryMap;
+
+	public ShardedQueryTask(QueryContext context, String queryNum, String queryString) {
+		this(context, queryNum, ESUtils.termFreqInQuery(queryString));
+	}
+
+	/*
+	 * Scores a query given as weighted terms, e.g. an expanded query
+	 */
+	public ShardedQueryTask(QueryContext context, String queryNum, Map<String,Double> termFreqQueryMap) {
+		this.context = context;
+		this.queryNum = queryNum;
+		this.termFreqQueryMap = termFreqQueryMap;
+	}
+
+	public QueryResult call() throws IOException {
+
+		long start = System.nanoTime();
+		Metrics.beginQuery();
+		try {
+			return score();
+		} finally {
+			Metrics.endQuery();
+			Metrics.record("query.total", start);
+		}
+	}
+
+	private QueryResult score() throws IOException {
+
+		QueryScorer.checkQueryTerms(queryNum, termFreqQueryMap.size());
+		final String[] terms = termFreqQueryMap.keySet().toArray(new String[termFreqQueryMap.size()]);
+		final String[] tokens = context.fetcher.tokens(terms);
+		int shards = context.fetcher.shards();
+
+		long start = System.nanoTime();
+		List<Future<Postings>> fetches = Lists.newArrayList();
+		for (int shard = 0; shard < shards; shard++) {
+			for (int termIndex = 0; termIndex < terms.length; termIndex++) {
+				final int s = shard;
+				final int t = termIndex;
+				fetches.add(SHARD_POOL.submit(new Callable<Postings>() {
+					public Postings call() {
+						return context.fetcher.fetchShard(terms[t], tokens[t], s);
+					}
+				}));
+			}
+		}
+		Postings[][] shardPostings = new Postings[shards][terms.length];
+		for (int shard = 0; shard < shards; shard++) {
+			for (int termIndex = 0; termIndex < terms.length; termIndex++) {
+				shardPostings[shard][termIndex] = get(fetches.get(shard * terms.length + termIndex));
+			}
+		}
+		Metrics.record("query.shardFetch", start);
+
+		final TermStats[] queryTerms = termStats(terms, tokens, termFreqQueryMap, shardPostings);
+
+		start = System.nanoTime();
+		List<Future<QueryResult>> scored = Lists.newArrayList();
+		for (final Postings[] postings : shardPostings) {
+			scored.add(SHARD_POOL.submit(new Callable<QueryResult>() {
+				public QueryResult call() throws IOException {
+					return scoreShard(postings, queryTerms);
+				}
+			}));
+		}
+		List<QueryResult> partial = Lists.newArrayList();
+		for (Future<QueryResult> shardResult : scored) {
+			partial.add(get(shardResult));
+		}
+		Metrics.record("query.shardScoring", start);
+
+		start = System.nanoTime();
+		QueryResult result = new QueryResult(queryNum);
+		for (RetrievalModel model : context.models) {
+			List<Ranking> rankings = Lists.newArrayList();
+			for (QueryResult shardResult : partial) {
+				rankings.add(shardResult.getRankings().get(model.name()));
+			}
+			result.put(model.name(), Ranking.merge(rankings, QueryTask.MAX_RANK));
+		}
+		Metrics.record("query.shardMerge", start);
+		return result;
+	}
+
+	/*
+	 * Statistics of every query term over all shards
+	 */
+	private TermStats[] termStats(String[] terms, String[] tokens, Map<String,Double> termFreqQueryMap,
+			Postings[][] shardPostings) {
+
+		TermStats[] queryTerms = new TermStats[terms.length];
+		for (int termIndex = 0; termIndex < terms.length; termIndex++) {
+			String term = terms[termIndex];
+			long docFreq = 0;
+			long collectionFreq = 0;
+			for (Postings[] postings : shardPostings) {
+				docFreq += postings[termIndex].getDocFreq();
+				collectionFreq += postings[termIndex].getCollectionFreq();
+			}
+			double tfq = termFreqQueryMap.get(term);
+			if (docFreq == 0) {
+				queryTerms[termIndex] = new TermStats(term, tfq, 0, 0, context.corpus);
+				continue;
+			}
+			Double tfdC = context.termFreqCorpus.get(term);
+			if (tfdC == null) {
+				long snapshot = context.corpus.collectionFreq(tokens[termIndex]);
+				tfdC = (double) (snapshot >= 0 ? snapshot : collectionFreq);
+				context.termFreqCorpus.put(term, tfdC);
+			}
+			queryTerms[termIndex] = new TermStats(term, tfq, docFreq, tfdC, context.corpus);
+		}
+		return queryTerms;
+	}
+
+	/*
+	 * Scores the postings of one shard with the scorer of the pool thread and
+	 * returns the top k documents of the shard for every model
+	 */
+	private QueryResult scoreShard(Postings[] postings, TermStats[] queryTerms) throws IOException {
+
+		QueryScorer scorer = SCORERS.get();
+		if (scorer == null || scorer.models != context.models) {
+			scorer = new QueryScorer(context.models, context.dictionary.maxDocId(), context, context, QueryTask.MAX_RANK);
+			SCORERS.set(scorer);
+		}
+		scorer.reset();
+		for (int termIndex = 0; termIndex < postings.length; termIndex++) {
+			Postings termPostings = postings[termIndex];
+			if (termPostings.size() == 0)
+				continue;
+			context.prefetchDocLengths(termPostings);
+			for (int i = 0; i < termPostings.size(); i++) {
+				context.registerDocno(termPostings.docIds[i], termPostings.docnos[i]);
+			}
+			scorer.score(queryTerms[termIndex], termIndex, termPostings);
+		}
+		return scorer.finish(queryNum, queryTerms);
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ElasticsearchException("interrupted while scoring shards", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new ElasticsearchException("shard query failed", cause);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package elasticsearch;
+
+/**
+ *  Statistics of one query term, handed to a RetrievalModel together with a
+ *  block of postings.
+ *  
+ *  @author Amod Samant
+ */
+public class TermStats {
+
+	final String term;
+	final double tfq;
+	// Factor of the term's score in the models that do not use tfq themselves
+	final double queryWeight;
+	final double docFreq;
+	final double collectionFreq;
+	final CorpusStatistics corpus;
+
+	public TermStats(String term, double tfq, double docFreq, double collectionFreq, CorpusStatistics corpus) {
+		this.term = term;
+		this.tfq = tfq;
+		this.queryWeight = queryWeight(tfq);
+		this.docFreq = docFreq;
+		this.collectionFreq = collectionFreq;
+		this.corpus = corpus;
+	}
+
+	/*
+	 * A term of the query counts once, however often it occurs in the query;
+	 * an expansion term of pseudo relevance feedback, whose tfq is a weight
+	 * below 1 (see FeedbackQueryTask), counts by that weight
+	 */
+	static double queryWeight(double tfq) {
+		return Math.min(tfq, 1.0);
+	}
+}
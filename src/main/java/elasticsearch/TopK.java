@@ -0,0 +1,124 @@
+package elasticsearch;
+
+/**
+ *  Bounded top-k selection over (doc id, score) pairs.
+ *  
+ *  Keeps the k best documents in a primitive binary min-heap, so selecting
+ *  from n scored documents costs O(n log k) instead of a full sort. Equal
+ *  scores are ordered by docno, which makes the ranked lists deterministic.
+ *  
+ *  @author Amod Samant
+ */
+public class TopK {
+
+	/*
+	 * Resolves doc ids to docnos for tie-breaking
+	 */
+	public interface DocnoLookup {
+		String docno(int docId);
+	}
+
+	private final int k;
+	private final DocnoLookup docnos;
+	private final int[] heapDocs;
+	private final double[] heapScores;
+	private int size;
+
+	public TopK(int k, DocnoLookup docnos) {
+		this.k = k;
+		this.docnos = docnos;
+		this.heapDocs = new int[k];
+		this.heapScores = new double[k];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Offers a document; it is kept if it ranks above the current k-th best
+	 */
+	public void offer(int docId, double score) {
+
+		if (size < k) {
+			heapDocs[size] = docId;
+			heapScores[size] = score;
+			siftUp(size++);
+		} else if (k > 0 && better(docId, score, heapDocs[0], heapScores[0])) {
+			heapDocs[0] = docId;
+			heapScores[0] = score;
+			siftDown(0);
+		}
+	}
+
+	/*
+	 * Empties the heap into a Ranking, best document first
+	 */
+	public Ranking drain() {
+
+		Ranking ranking = new Ranking(size);
+		for (int i = size - 1; i >= 0; i--) {
+			ranking.set(i, docnos.docno(heapDocs[0]), heapScores[0]);
+			heapDocs[0] = heapDocs[i];
+			heapScores[0] = heapScores[i];
+			size = i;
+			siftDown(0);
+		}
+		return ranking;
+	}
+
+	/*
+	 * Whether document a ranks above document b: higher score first,
+	 * then smaller docno
+	 */
+	private boolean better(int docA, double scoreA, int docB, double scoreB) {
+
+		if (scoreA != scoreB) {
+			return scoreA > scoreB;
+		}
+		return docnos.docno(docA).compareTo(docnos.docno(docB)) < 0;
+	}
+
+	private void siftUp(int i) {
+
+		int doc = heapDocs[i];
+		double score = heapScores[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!better(heapDocs[parent], heapScores[parent], doc, score)) {
+				break;
+			}
+			heapDocs[i] = heapDocs[parent];
+			heapScores[i] = heapScores[parent];
+			i = parent;
+		}
+		heapDocs[i] = doc;
+		heapScores[i] = score;
+	}
+
+	private void siftDown(int i) {
+
+		int doc = heapDocs[i];
+		double score = heapScores[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && better(heapDocs[child], heapScores[child], heapDocs[right], heapScores[right])) {
+				child = right;
+			}
+			if (!better(doc, score, heapDocs[child], heapScores[child])) {
+				break;
+			}
+			heapDocs[i] = heapDocs[child];
+			heapScores[i] = heapScores[child];
+			i = child;
+		}
+		heapDocs[i] = doc;
+		heapScores[i] = score;
+	}
+}
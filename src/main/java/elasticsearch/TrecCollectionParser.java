@@ -0,0 +1,148 @@
+package elasticsearch;
+
+/**
+ *  Parses the files of a TREC collection in parallel on a fixed worker pool
+ *  and hands the documents to a single consumer through a bounded queue.
+ *  
+ *  When the indexing stage falls behind the queue fills up and the parser
+ *  threads block, so memory stays bounded by the queue capacity. The parser
+ *  threads are daemon threads and stop() interrupts them, so a consumer that
+ *  gives up early never leaves them blocked on the queue.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TrecCollectionParser {
+
+	private final File[] files;
+	private final ExecutorService workers;
+	private final BlockingQueue<TrecDocument> queue;
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+	private final FileListener listener;
+
+	/*
+	 * Told about every file that was read to the end, from a parser thread
+	 */
+	public interface FileListener {
+		void fileParsed(File file, int documents);
+	}
+
+	public TrecCollectionParser(File[] files, int threads, int queueCapacity) {
+		this(files, threads, queueCapacity, null);
+	}
+
+	public TrecCollectionParser(File[] files, int threads, int queueCapacity, FileListener listener) {
+		this.files = files;
+		this.listener = listener;
+		this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "trec-parser-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.queue = new ArrayBlockingQueue<TrecDocument>(queueCapacity);
+	}
+
+	/*
+	 * Submits one parse task per file. TrecDocument.END is queued once the
+	 * last file is finished.
+	 */
+	public void start() {
+
+		for (final File file : files) {
+			workers.execute(new Runnable() {
+				public void run() {
+					parseFile(file);
+				}
+			});
+		}
+		workers.shutdown();
+
+		Thread finisher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+					queue.put(TrecDocument.END);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "trec-parser-finisher");
+		finisher.setDaemon(true);
+		finisher.start();
+	}
+
+	/*
+	 * Returns the next parsed document, or null once every file has been read.
+	 * Rethrows the first error hit by a parser thread, runtime errors wrapped
+	 * in an IOException naming the file.
+	 */
+	public TrecDocument take() throws IOException, InterruptedException {
+
+		TrecDocument doc = queue.take();
+		if (failure.get() != null) {
+			workers.shutdownNow();
+			throw failure.get();
+		}
+		if (doc == TrecDocument.END) {
+			return null;
+		}
+		return doc;
+	}
+
+	/*
+	 * Stops parsing, interrupting parser threads blocked on the full queue.
+	 * Called by a consumer that stops taking documents, e.g. after an error.
+	 */
+	public void stop() {
+		workers.shutdownNow();
+	}
+
+	private void parseFile(File file) {
+
+		TrecDocumentReader reader = null;
+		try {
+			reader = new TrecDocumentReader(file);
+			TrecDocument doc;
+			int documents = 0;
+			long start = System.nanoTime();
+			while ((doc = reader.next()) != null) {
+				Metrics.record("index.parse", start);
+				queue.put(doc);
+				documents++;
+				start = System.nanoTime();
+			}
+			if (listener != null)
+				listener.fileParsed(file, documents);
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		} catch (RuntimeException e) {
+			// e.g. a malformed document; without this the rest of the file would be lost silently
+			failure.compareAndSet(null, new IOException("cannot parse " + file, e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		}
+	}
+}
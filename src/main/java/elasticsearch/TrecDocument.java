@@ -0,0 +1,52 @@
+package elasticsearch;
+
+/**
+ *  A single document of the TREC collection, as produced by TrecDocumentReader.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.File;
+
+public class TrecDocument {
+
+	/*
+	 * Marker put on the parser queue once every file has been read.
+	 */
+	static final TrecDocument END = new TrecDocument(null, null);
+
+	private final String docno;
+	private final String text;
+	private final File source;
+	private final int position;
+
+	public TrecDocument(String docno, String text) {
+		this(docno, text, null, -1);
+	}
+
+	/*
+	 * A document read from the given file, position being its index among
+	 * the documents of the file
+	 */
+	public TrecDocument(String docno, String text, File source, int position) {
+		this.docno = docno;
+		this.text = text;
+		this.source = source;
+		this.position = position;
+	}
+
+	public String getDocno() {
+		return docno;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public File getSource() {
+		return source;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+}
@@ -0,0 +1,82 @@
+package elasticsearch;
+
+/**
+ *  Streaming reader for TREC/SGML files. Each call to next() returns the
+ *  docno and the concatenated <TEXT> sections of the following document.
+ *  
+ *  Tags are found with plain startsWith/indexOf scans instead of regular
+ *  expressions, and the text sections of a document share one StringBuilder.
+ *  
+ *  @author Amod Samant
+ */
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+public class TrecDocumentReader implements Closeable {
+
+	private static final String DOCNO_OPEN = "<DOCNO>";
+	private static final String DOCNO_CLOSE = "</DOCNO>";
+	private static final String TEXT_OPEN = "<TEXT>";
+	private static final String TEXT_CLOSE = "</TEXT>";
+	private static final String DOC_CLOSE = "</DOC>";
+
+	private final BufferedReader reader;
+	private final File source;
+	private final StringBuilder textSection = new StringBuilder(8192);
+	private int position;
+
+	public TrecDocumentReader(File file) throws IOException {
+		this(new FileReader(file), file);
+	}
+
+	public TrecDocumentReader(Reader reader) {
+		this(reader, null);
+	}
+
+	private TrecDocumentReader(Reader reader, File source) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 1 << 16);
+		this.source = source;
+	}
+
+	/*
+	 * Returns the next document, or null at the end of the file.
+	 */
+	public TrecDocument next() throws IOException {
+
+		String docNo = "";
+		String line;
+		textSection.setLength(0);
+
+		while((line = reader.readLine())!=null) {
+
+			int docnoStart = line.indexOf(DOCNO_OPEN);
+			if(docnoStart >= 0) {
+				int docnoEnd = line.indexOf(DOCNO_CLOSE, docnoStart);
+				if(docnoEnd >= 0) {
+					docNo = line.substring(docnoStart + DOCNO_OPEN.length(), docnoEnd).trim();
+				}
+			}
+
+			if(line.contains(TEXT_OPEN)) {
+				while((line = reader.readLine())!=null && !line.contains(TEXT_CLOSE)) {
+					textSection.append(line).append(' ');
+				}
+				if(line == null)
+					break;
+			}
+
+			if(line.equals(DOC_CLOSE)) {
+				return new TrecDocument(docNo, textSection.toString(), source, position++);
+			}
+		}
+		return null;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,407 @@
+package elasticsearch;
+
+/**
+ *  TrecEvaluator computes the trec_eval measures of the ranked lists of a
+ *  run in process, so a run no longer needs an external trec_eval per
+ *  model file.
+ *
+ *  The qrels (-Deval.qrels) are loaded once into one docno to relevance
+ *  map per query. For every model it reports MAP, P@k for the
+ *  -Deval.cutoffs ranks, R-precision and nDCG, averaged over the queries
+ *  that are both in the run and in the qrels (like trec_eval without -c).
+ *  Models are evaluated in parallel on -Deval.threads threads, directly on
+ *  the QueryResults of the run. Measures are taken in ranked list order;
+ *  trec_eval additionally reorders equal scores by descending docno.
+ *
+ *  The report goes to output/eval-<run>.json, with one entry per query
+ *  when -Deval.perQuery=true. Run as a program it evaluates run files
+ *  (output/*.txt by default, one model per file).
+ *
+ *  @author Amod Samant
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.hppc.ObjectIntOpenHashMap;
+import org.json.JSONObject;
+
+public class TrecEvaluator {
+
+	static final File QRELS = new File(System.getProperty("eval.qrels", "src/main/resources/qrels.adhoc.51-100.AP89.txt"));
+	static final int[] CUTOFFS = cutoffs(System.getProperty("eval.cutoffs", "5,10,20,30,100"));
+	static final boolean PER_QUERY = Boolean.parseBoolean(System.getProperty("eval.perQuery", "false"));
+	static final int THREADS = Integer.getInteger("eval.threads", Runtime.getRuntime().availableProcessors());
+
+	private final Map<String,Judgments> qrels;
+
+	TrecEvaluator(Map<String,Judgments> qrels) {
+		this.qrels = qrels;
+	}
+
+	/*
+	 * Evaluates the results of a run and writes the report, if the qrels
+	 * file exists
+	 */
+	static void evaluateRun(String run, List<QueryResult> results) throws IOException, InterruptedException, ExecutionException {
+
+		if (!QRELS.exists()) {
+			System.out.println(QRELS + " not found, skipping evaluation");
+			return;
+		}
+		long start = System.nanoTime();
+		Map<String,Evaluation> evaluations = load(QRELS).evaluate(results);
+		Metrics.record("eval.total", start);
+		writeReport(run, evaluations);
+	}
+
+	/*
+	 * Reads "<queryNum> <iteration> <docno> <relevance>" lines
+	 */
+	static TrecEvaluator load(File file) throws IOException {
+
+		Map<String,Judgments> qrels = Maps.newHashMap();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length < 4)
+					continue;
+				Judgments judgments = qrels.get(fields[0]);
+				if (judgments == null) {
+					judgments = new Judgments();
+					qrels.put(fields[0], judgments);
+				}
+				judgments.judge(fields[2], Integer.parseInt(fields[3]));
+			}
+		} finally {
+			reader.close();
+		}
+		for (Judgments judgments : qrels.values()) {
+			judgments.computeIdealDcg();
+		}
+		return new TrecEvaluator(qrels);
+	}
+
+	/*
+	 * Evaluates every model of the results, one model per task
+	 */
+	Map<String,Evaluation> evaluate(final List<QueryResult> results) throws InterruptedException, ExecutionException {
+
+		Map<String,Evaluation> evaluations = new LinkedHashMap<String,Evaluation>();
+		if (results.isEmpty())
+			return evaluations;
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			Map<String,Future<Evaluation>> futures = new LinkedHashMap<String,Future<Evaluation>>();
+			for (final String model : results.get(0).getRankings().keySet()) {
+				futures.put(model, pool.submit(new Callable<Evaluation>() {
+					public Evaluation call() {
+						return evaluate(model, results);
+					}
+				}));
+			}
+			for (Map.Entry<String,Future<Evaluation>> future : futures.entrySet()) {
+				evaluations.put(future.getKey(), future.getValue().get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return evaluations;
+	}
+
+	/*
+	 * Evaluates the rankings of one model
+	 */
+	Evaluation evaluate(String model, List<QueryResult> results) {
+
+		Evaluation evaluation = new Evaluation(model);
+		for (QueryResult result : results) {
+			Judgments judgments = qrels.get(result.getQueryNum());
+			Ranking ranking = result.getRankings().get(model);
+			if (judgments == null || ranking == null)
+				continue;
+			evaluation.add(result.getQueryNum(), measures(ranking, judgments));
+		}
+		return evaluation;
+	}
+
+	/*
+	 * Measures of one ranked list: average precision, R-precision, nDCG,
+	 * then the precision at every cutoff
+	 */
+	static double[] measures(Ranking ranking, Judgments judgments) {
+
+		double[] measures = new double[3 + CUTOFFS.length];
+		int relevantRetrieved = 0;
+		int relevantAtR = 0;
+		double precisionSum = 0;
+		double dcg = 0;
+		int[] relevantAtCutoff = new int[CUTOFFS.length];
+
+		for (int rank = 0; rank < ranking.size(); rank++) {
+			int relevance = judgments.relevance(ranking.docno(rank));
+			if (relevance > 0) {
+				relevantRetrieved++;
+				precisionSum += (double) relevantRetrieved / (rank + 1);
+				dcg += relevance / log2(rank + 2);
+				if (rank < judgments.relevant)
+					relevantAtR++;
+				for (int c = 0; c < CUTOFFS.length; c++) {
+					if (rank < CUTOFFS[c])
+						relevantAtCutoff[c]++;
+				}
+			}
+		}
+		if (judgments.relevant > 0) {
+			measures[0] = precisionSum / judgments.relevant;
+			measures[1] = (double) relevantAtR / judgments.relevant;
+		}
+		measures[2] = judgments.idealDcg > 0 ? dcg / judgments.idealDcg : 0;
+		for (int c = 0; c < CUTOFFS.length; c++) {
+			measures[3 + c] = (double) relevantAtCutoff[c] / CUTOFFS[c];
+		}
+		return measures;
+	}
+
+	private static double log2(double value) {
+		return Math.log(value) / Math.log(2);
+	}
+
+	static String[] measureNames() {
+
+		String[] names = new String[3 + CUTOFFS.length];
+		names[0] = "map";
+		names[1] = "Rprec";
+		names[2] = "ndcg";
+		for (int c = 0; c < CUTOFFS.length; c++) {
+			names[3 + c] = "P_" + CUTOFFS[c];
+		}
+		return names;
+	}
+
+	/*
+	 * Prints one line per model and writes output/eval-<run>.json
+	 */
+	static void writeReport(String run, Map<String,Evaluation> evaluations) throws IOException {
+
+		String[] names = measureNames();
+		JSONObject report = new JSONObject();
+		report.put("run", run);
+		report.put("qrels", QRELS.getPath());
+		JSONObject models = new JSONObject();
+		for (Evaluation evaluation : evaluations.values()) {
+			StringBuilder line = new StringBuilder(String.format("%-12s queries=%d", evaluation.model, evaluation.queries));
+			double[] means = evaluation.means();
+			for (int m = 0; m < names.length; m++) {
+				line.append(String.format(" %s=%.4f", names[m], means[m]));
+			}
+			System.out.println(line);
+			models.put(evaluation.model, evaluation.toJson());
+		}
+		report.put("models", models);
+
+		File file = new File("output/eval-" + run + ".json");
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(report.toString(2));
+			writer.write('\n');
+		} finally {
+			writer.close();
+		}
+		System.out.println("evaluation written to " + file);
+	}
+
+	/*
+	 * Evaluates run files given as arguments, or every run file in output/
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+
+		File[] runFiles;
+		if (args.length > 0) {
+			runFiles = new File[args.length];
+			for (int i = 0; i < args.length; i++) {
+				runFiles[i] = new File(args[i]);
+			}
+		} else {
+			runFiles = new File("output").listFiles(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".txt");
+				}
+			});
+			if (runFiles == null)
+				runFiles = new File[0];
+			Arrays.sort(runFiles);
+		}
+		evaluateRun("files", readRuns(runFiles));
+		Metrics.writeSummary("eval");
+	}
+
+	/*
+	 * Reads "<queryNum> Q0 <docno> <rank> <score> <tag>" run files into one
+	 * QueryResult per query, with the file name (without .txt) as model
+	 */
+	static List<QueryResult> readRuns(File[] runFiles) throws IOException {
+
+		Map<String,QueryResult> results = new LinkedHashMap<String,QueryResult>();
+		for (File runFile : runFiles) {
+			String model = runFile.getName().replaceAll("\\.txt$", "");
+			Map<String,List<String[]>> lines = new LinkedHashMap<String,List<String[]>>();
+			BufferedReader reader = new BufferedReader(new FileReader(runFile));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.trim().split("\\s+");
+					if (fields.length < 5)
+						continue;
+					List<String[]> query = lines.get(fields[0]);
+					if (query == null) {
+						query = Lists.newArrayList();
+						lines.put(fields[0], query);
+					}
+					query.add(fields);
+				}
+			} finally {
+				reader.close();
+			}
+			for (Map.Entry<String,List<String[]>> query : lines.entrySet()) {
+				QueryResult result = results.get(query.getKey());
+				if (result == null) {
+					result = new QueryResult(query.getKey());
+					results.put(query.getKey(), result);
+				}
+				Ranking ranking = new Ranking(query.getValue().size());
+				for (int rank = 0; rank < ranking.size(); rank++) {
+					String[] fields = query.getValue().get(rank);
+					ranking.set(rank, fields[2], Double.parseDouble(fields[4]));
+				}
+				result.put(model, ranking);
+			}
+		}
+		return Lists.newArrayList(results.values());
+	}
+
+	private static int[] cutoffs(String cutoffs) {
+
+		String[] values = cutoffs.split(",");
+		int[] ranks = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ranks[i] = Integer.parseInt(values[i].trim());
+		}
+		return ranks;
+	}
+
+	/*
+	 * Relevance judgments of one query
+	 */
+	static class Judgments {
+
+		private final ObjectIntOpenHashMap<String> relevance = new ObjectIntOpenHashMap<String>();
+		private int[] gains = new int[16];
+		int relevant;
+		double idealDcg;
+
+		void judge(String docno, int level) {
+
+			relevance.put(docno, level);
+			if (level > 0) {
+				if (relevant == gains.length)
+					gains = Arrays.copyOf(gains, relevant * 2);
+				gains[relevant++] = level;
+			}
+		}
+
+		/*
+		 * Relevance level of the docno, 0 when it was not judged
+		 */
+		int relevance(String docno) {
+			return relevance.containsKey(docno) ? relevance.lget() : 0;
+		}
+
+		void computeIdealDcg() {
+
+			int[] sorted = Arrays.copyOf(gains, relevant);
+			Arrays.sort(sorted);
+			idealDcg = 0;
+			for (int rank = 0; rank < sorted.length; rank++) {
+				idealDcg += sorted[sorted.length - 1 - rank] / log2(rank + 2);
+			}
+		}
+	}
+
+	/*
+	 * Measures of one model, summed over the evaluated queries
+	 */
+	static class Evaluation {
+
+		final String model;
+		final double[] sums = new double[3 + CUTOFFS.length];
+		final Map<String,double[]> perQuery = new LinkedHashMap<String,double[]>();
+		int queries;
+
+		Evaluation(String model) {
+			this.model = model;
+		}
+
+		void add(String queryNum, double[] measures) {
+
+			for (int m = 0; m < measures.length; m++) {
+				sums[m] += measures[m];
+			}
+			queries++;
+			if (PER_QUERY)
+				perQuery.put(queryNum, measures);
+		}
+
+		double[] means() {
+
+			double[] means = new double[sums.length];
+			for (int m = 0; m < sums.length; m++) {
+				means[m] = queries == 0 ? 0 : sums[m] / queries;
+			}
+			return means;
+		}
+
+		JSONObject toJson() {
+
+			String[] names = measureNames();
+			JSONObject json = new JSONObject();
+			json.put("queries", queries);
+			double[] means = means();
+			for (int m = 0; m < names.length; m++) {
+				json.put(names[m], means[m]);
+			}
+			if (PER_QUERY) {
+				JSONObject queryJson = new JSONObject();
+				for (Map.Entry<String,double[]> query : perQuery.entrySet()) {
+					JSONObject measures = new JSONObject();
+					for (int m = 0; m < names.length; m++) {
+						measures.put(names[m], query.getValue()[m]);
+					}
+					queryJson.put(query.getKey(), measures);
+				}
+				json.put("perQuery", queryJson);
+			}
+			return json;
+		}
+	}
+}